@@ -0,0 +1,75 @@
+package com.totsp.crossword.bench;
+
+/**
+ * Minimal timing harness for the benchmarks in this directory.  Each task is
+ * warmed up until the JIT has had a chance to compile it, then timed over a
+ * fixed number of rounds; the best round is reported, which is the most
+ * stable figure on a shared machine.
+ */
+public class Bench {
+    public interface Task {
+        /**
+         * Runs one operation.  The result is folded into a sink so the JIT
+         * can't eliminate the work.
+         */
+        long run() throws Exception;
+    }
+
+    private static final long ROUND_NANOS = 100 * 1000 * 1000L;
+    private static final int WARMUP_ROUNDS = 5;
+    private static final int ROUNDS = 10;
+
+    private static long sink;
+
+    /**
+     * Times task and prints its cost per operation.  Returns the best time
+     * per operation in nanoseconds.
+     */
+    public static double measure(String name, Task task) throws Exception {
+        // Size a round so that it takes roughly ROUND_NANOS.
+        int ops = 1;
+        while (true) {
+            long start = System.nanoTime();
+            for (int i = 0; i < ops; i++) {
+                sink += task.run();
+            }
+            if (System.nanoTime() - start > ROUND_NANOS / 10 || ops >= (1 << 24)) {
+                break;
+            }
+            ops *= 2;
+        }
+        ops = Math.max(1, ops * 10);
+
+        for (int round = 0; round < WARMUP_ROUNDS; round++) {
+            for (int i = 0; i < ops; i++) {
+                sink += task.run();
+            }
+        }
+
+        double best = Double.MAX_VALUE;
+        for (int round = 0; round < ROUNDS; round++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < ops; i++) {
+                sink += task.run();
+            }
+            best = Math.min(best, (System.nanoTime() - start) / (double) ops);
+        }
+
+        System.out.println(String.format("%-48s %14.1f ns/op", name, best));
+        return best;
+    }
+
+    /**
+     * Prints the ratio between a baseline and a candidate measurement.
+     */
+    public static void compare(String name, double baseline, double candidate) {
+        System.out.println(String.format("%-48s %14.2fx", name + " speedup", baseline / candidate));
+    }
+
+    /**
+     * Returns the accumulated sink so it is observably used.
+     */
+    public static long sink() {
+        return sink;
+    }
+}
@@ -0,0 +1,77 @@
+package com.totsp.crossword.bench;
+
+import java.util.Random;
+
+import com.totsp.crossword.io.IO;
+
+/**
+ * Checks IO.cksum_region bit for bit against the original byte-at-a-time
+ * implementation, then times both on clue-sized and grid-sized regions.
+ */
+public class CksumBench {
+
+    /**
+     * The checksum loop IO used before it was made branch-free.
+     */
+    static int referenceCksumRegion(byte[] data, int offset, int length, int cksum) {
+        for (int i = offset; i < offset + length; i++) {
+            if ((cksum & 0x1) != 0) {
+                cksum = (cksum >> 1) + 0x8000;
+            } else {
+                cksum = cksum >> 1;
+            }
+            cksum += (0xFF & data[i]);
+            cksum = cksum & 0xFFFF;
+        }
+        return cksum;
+    }
+
+    static void verify() {
+        Random random = new Random(42);
+        byte[] data = new byte[4096];
+        random.nextBytes(data);
+        // Every seed over a handful of offsets and lengths, then random spot checks.
+        for (int seed = 0; seed <= 0xFFFF; seed++) {
+            for (int length = 0; length < 9; length++) {
+                check(data, seed & 7, length, seed);
+            }
+        }
+        for (int i = 0; i < 100000; i++) {
+            int offset = random.nextInt(data.length);
+            int length = random.nextInt(data.length - offset + 1);
+            check(data, offset, length, random.nextInt(0x10000));
+        }
+        System.out.println("cksum_region matches the reference implementation.");
+    }
+
+    private static void check(byte[] data, int offset, int length, int seed) {
+        int expected = referenceCksumRegion(data, offset, length, seed);
+        int actual = IO.cksum_region(data, offset, length, seed);
+        if (expected != actual) {
+            throw new IllegalStateException("cksum_region(" + offset + ", " + length + ", " + seed
+                + ") = " + actual + ", expected " + expected);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        verify();
+
+        Random random = new Random(7);
+        for (final int length : new int[] { 24, 225, 441, 65025 }) {
+            final byte[] data = new byte[length];
+            random.nextBytes(data);
+            double reference = Bench.measure("reference cksum (" + length + " bytes)", new Bench.Task() {
+                public long run() {
+                    return referenceCksumRegion(data, 0, length, 0);
+                }
+            });
+            double current = Bench.measure("IO.cksum_region (" + length + " bytes)", new Bench.Task() {
+                public long run() {
+                    return IO.cksum_region(data, 0, length, 0);
+                }
+            });
+            Bench.compare("cksum (" + length + " bytes)", reference, current);
+        }
+        System.out.println("sink " + Bench.sink());
+    }
+}
@@ -0,0 +1,193 @@
+package com.totsp.crossword.bench;
+
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import com.totsp.crossword.io.IO;
+import com.totsp.crossword.puz.Box;
+import com.totsp.crossword.puz.Puzzle;
+
+/**
+ * Generates deterministic square puzzles for benchmarking.  Black squares are
+ * placed at random with 180 degree symmetry, every white square gets a random
+ * letter and every word gets a short clue, so the output has the same shape
+ * as a real JPZ file of the given size.
+ */
+public class PuzzleGenerator {
+    private final int size;
+    private final boolean[][] blocks;
+    private final char[][] solution;
+    private final int[][] numbers;
+    private final List<Integer> across = new ArrayList<Integer>();
+    private final List<Integer> down = new ArrayList<Integer>();
+    private String notes = "Generated puzzle.";
+
+    public PuzzleGenerator(int size, long seed) {
+        this.size = size;
+        Random random = new Random(seed);
+        blocks = new boolean[size][size];
+        solution = new char[size][size];
+        numbers = new int[size][size];
+
+        for (int y = 0; y < size; y++) {
+            for (int x = 0; x < size; x++) {
+                if (random.nextInt(100) < 15) {
+                    blocks[y][x] = true;
+                    blocks[size - 1 - y][size - 1 - x] = true;
+                }
+                solution[y][x] = (char) ('A' + random.nextInt(26));
+            }
+        }
+
+        int clueNumber = 1;
+        for (int y = 0; y < size; y++) {
+            for (int x = 0; x < size; x++) {
+                if (blocks[y][x]) {
+                    continue;
+                }
+                boolean startsAcross = (x == 0 || blocks[y][x - 1]) && x + 1 < size && !blocks[y][x + 1];
+                boolean startsDown = (y == 0 || blocks[y - 1][x]) && y + 1 < size && !blocks[y + 1][x];
+                if (startsAcross || startsDown) {
+                    numbers[y][x] = clueNumber;
+                    if (startsAcross) {
+                        across.add(clueNumber);
+                    }
+                    if (startsDown) {
+                        down.add(clueNumber);
+                    }
+                    clueNumber++;
+                }
+            }
+        }
+    }
+
+    /**
+     * Sets the puzzle notes, e.g. to something long to stress string handling.
+     */
+    public PuzzleGenerator setNotes(String notes) {
+        this.notes = notes;
+        return this;
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    public int getNumberOfClues() {
+        return across.size() + down.size();
+    }
+
+    /**
+     * Returns a fresh grid of boxes, not yet numbered, in the layout
+     * Puzzle.setBoxes expects.
+     */
+    public Box[][] toBoxes() {
+        Box[][] boxes = new Box[size][size];
+        for (int y = 0; y < size; y++) {
+            for (int x = 0; x < size; x++) {
+                if (!blocks[y][x]) {
+                    boxes[y][x] = new Box();
+                    boxes[y][x].setSolution(solution[y][x]);
+                    boxes[y][x].setCircled((x + 3 * y) % 17 == 0);
+                }
+            }
+        }
+        return boxes;
+    }
+
+    /**
+     * Returns the puzzle as a Puzzle, numbered and with its clues in .puz order.
+     */
+    public Puzzle toPuzzle() {
+        Puzzle puz = new Puzzle();
+        puz.setTitle("Generated " + size + "x" + size);
+        puz.setAuthor("Benchmark");
+        puz.setCopyright("Public domain");
+        puz.setNotes(notes);
+        puz.setVersion(IO.VERSION_STRING);
+        puz.setWidth(size);
+        puz.setHeight(size);
+        puz.setGEXT(true);
+        puz.setBoxes(toBoxes());
+
+        String[] rawClues = new String[getNumberOfClues()];
+        int i = 0;
+        int a = 0;
+        int d = 0;
+        while (a < across.size() || d < down.size()) {
+            int next = Math.min(a < across.size() ? across.get(a) : Integer.MAX_VALUE,
+                d < down.size() ? down.get(d) : Integer.MAX_VALUE);
+            if (a < across.size() && across.get(a) == next) {
+                rawClues[i++] = "Across clue " + next;
+                a++;
+            }
+            if (d < down.size() && down.get(d) == next) {
+                rawClues[i++] = "Down clue " + next;
+                d++;
+            }
+        }
+        puz.setNumberOfClues(rawClues.length);
+        puz.setRawClues(rawClues);
+        return puz;
+    }
+
+    /**
+     * Returns the puzzle as a JPZ XML document.
+     */
+    public String toJPZ() {
+        StringBuilder sb = new StringBuilder(size * size * 64);
+        sb.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+        sb.append("<crossword-compiler-applet>\n");
+        sb.append("<rectangular-puzzle xmlns=\"http://crossword.info/xml/rectangular-puzzle\" alphabet=\"ABCDEFGHIJKLMNOPQRSTUVWXYZ\">\n");
+        sb.append("<metadata>\n<title>Generated ").append(size).append("x").append(size).append("</title>\n");
+        sb.append("<creator>Benchmark</creator>\n<copyright>Public domain</copyright>\n");
+        sb.append("<description>").append(notes).append("</description>\n</metadata>\n");
+        sb.append("<crossword>\n<grid width=\"").append(size).append("\" height=\"").append(size).append("\">\n");
+        sb.append("<grid-look numbering-scheme=\"normal\" cell-size-in-pixels=\"26\"/>\n");
+        for (int y = 0; y < size; y++) {
+            for (int x = 0; x < size; x++) {
+                sb.append("<cell x=\"").append(x + 1).append("\" y=\"").append(y + 1).append("\"");
+                if (blocks[y][x]) {
+                    sb.append(" type=\"block\"");
+                } else {
+                    sb.append(" solution=\"").append(solution[y][x]).append("\"");
+                    if (numbers[y][x] != 0) {
+                        sb.append(" number=\"").append(numbers[y][x]).append("\"");
+                    }
+                    if ((x + 3 * y) % 17 == 0) {
+                        sb.append(" background-shape=\"circle\"");
+                    }
+                }
+                sb.append("></cell>\n");
+            }
+        }
+        sb.append("</grid>\n");
+        appendClues(sb, "Across", across);
+        appendClues(sb, "Down", down);
+        sb.append("</crossword>\n</rectangular-puzzle>\n</crossword-compiler-applet>\n");
+        return sb.toString();
+    }
+
+    /**
+     * Returns the JPZ document encoded as UTF-8.
+     */
+    public byte[] toJPZBytes() {
+        try {
+            return toJPZ().getBytes("utf-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private void appendClues(StringBuilder sb, String title, List<Integer> clueNumbers) {
+        sb.append("<clues ordering=\"normal\">\n<title><b>").append(title).append("</b></title>\n");
+        for (int clueNumber : clueNumbers) {
+            sb.append("<clue word=\"").append(clueNumber).append("\" number=\"").append(clueNumber)
+                .append("\">").append(title).append(" clue ").append(clueNumber)
+                .append(" for 100% of &lt;i&gt;solvers&lt;/i&gt;</clue>\n");
+        }
+        sb.append("</clues>\n");
+    }
+}
@@ -0,0 +1,194 @@
+package com.totsp.crossword.bench;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Set;
+
+import com.totsp.crossword.io.IO;
+import com.totsp.crossword.io.JPZConverter;
+import com.totsp.crossword.io.JPZIO;
+import com.totsp.crossword.io.MappedPuzzle;
+import com.totsp.crossword.puz.Box;
+import com.totsp.crossword.puz.Grid;
+import com.totsp.crossword.puz.Puzzle;
+import com.totsp.crossword.puz.Unscrambler;
+import com.totsp.crossword.puz.WordSpans;
+
+/**
+ * Times each stage of a conversion separately on generated 15x15, 21x21 and
+ * 255x255 puzzles: the JPZ SAX parse, clue numbering in Puzzle.setBoxes,
+ * finding the across word of every cell by scanning versus WordSpans,
+ * IO.saveNative, IO.loadNative, a title lookup through IO.load versus
+ * MappedPuzzle, IO.cksum_region, a single Puzzle.tryUnscramble attempt and a
+ * parallel search of the whole key space.
+ *
+ * Pass stage names (parse, number, words, save, load, header, cksum,
+ * unscramble, search) to run a subset.
+ */
+public class StageBench {
+    private static final int[] SIZES = { 15, 21, 255 };
+
+    public static void main(String[] args) throws Exception {
+        Set<String> stages = new HashSet<String>(Arrays.asList(args));
+        for (int size : SIZES) {
+            run(new PuzzleGenerator(size, size), stages);
+        }
+        System.out.println("sink " + Bench.sink());
+    }
+
+    private static boolean enabled(Set<String> stages, String stage) {
+        return stages.isEmpty() || stages.contains(stage);
+    }
+
+    private static void run(PuzzleGenerator generator, Set<String> stages) throws Exception {
+        String label = generator.getSize() + "x" + generator.getSize() + " ";
+
+        final JPZConverter converter = new JPZConverter();
+        final byte[] jpz = generator.toJPZBytes();
+        final Puzzle puz = generator.toPuzzle();
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        IO.saveNative(puz, new DataOutputStream(baos));
+        final byte[] native_ = baos.toByteArray();
+
+        if (enabled(stages, "parse")) {
+            Bench.measure(label + "JPZ parse", new Bench.Task() {
+                public long run() throws Exception {
+                    return converter.parse(JPZIO.filterJPZStream(new ByteArrayInputStream(jpz)),
+                        new Date()).getNumberOfClues();
+                }
+            });
+        }
+
+        if (enabled(stages, "number")) {
+            final Box[][] boxes = generator.toBoxes();
+            final Puzzle target = new Puzzle();
+            Bench.measure(label + "Puzzle.setBoxes", new Bench.Task() {
+                public long run() {
+                    target.setBoxes(boxes);
+                    return target.getWidth();
+                }
+            });
+        }
+
+        if (enabled(stages, "words")) {
+            final Grid grid = puz.getGrid();
+            final WordSpans spans = puz.getWordSpans();
+            final int columns = grid.getWidth();
+            double scan = Bench.measure(label + "word of every cell, scanning", new Bench.Task() {
+                public long run() {
+                    long sum = 0;
+                    for (int i = 0; i < grid.size(); i++) {
+                        if (grid.isBlock(i)) {
+                            continue;
+                        }
+                        int start = i;
+                        while ((start % columns) > 0 && !grid.isBlock(start - 1)) {
+                            start--;
+                        }
+                        int end = i;
+                        while (((end + 1) % columns) > 0 && !grid.isBlock(end + 1)) {
+                            end++;
+                        }
+                        sum += start + (end - start + 1);
+                    }
+                    return sum;
+                }
+            });
+            double table = Bench.measure(label + "word of every cell, WordSpans", new Bench.Task() {
+                public long run() {
+                    long sum = 0;
+                    for (int i = 0; i < grid.size(); i++) {
+                        int word = spans.getAcrossWord(i);
+                        if (word >= 0) {
+                            sum += spans.getAcrossStart(word) + spans.getAcrossLength(word);
+                        }
+                    }
+                    return sum;
+                }
+            });
+            Bench.compare(label + "word lookup", scan, table);
+        }
+
+        if (enabled(stages, "save")) {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream(native_.length);
+            Bench.measure(label + "IO.saveNative", new Bench.Task() {
+                public long run() throws Exception {
+                    out.reset();
+                    IO.saveNative(puz, new DataOutputStream(out));
+                    return out.size();
+                }
+            });
+        }
+
+        if (enabled(stages, "load")) {
+            Bench.measure(label + "IO.loadNative", new Bench.Task() {
+                public long run() throws Exception {
+                    return IO.loadNative(new DataInputStream(new ByteArrayInputStream(native_)))
+                        .getNumberOfClues();
+                }
+            });
+        }
+
+        if (enabled(stages, "header")) {
+            final File file = File.createTempFile("stagebench", ".puz");
+            file.deleteOnExit();
+            FileOutputStream fos = new FileOutputStream(file);
+            fos.write(native_);
+            fos.close();
+            double full = Bench.measure(label + "IO.load(File) for title", new Bench.Task() {
+                public long run() throws Exception {
+                    return IO.load(file).getTitle().length();
+                }
+            });
+            double lazy = Bench.measure(label + "MappedPuzzle title", new Bench.Task() {
+                public long run() throws Exception {
+                    return MappedPuzzle.open(file).getTitle().length();
+                }
+            });
+            Bench.compare(label + "title lookup", full, lazy);
+        }
+
+        if (enabled(stages, "cksum")) {
+            final int boxes = generator.getSize() * generator.getSize();
+            Bench.measure(label + "IO.cksum_region (" + boxes + " bytes)", new Bench.Task() {
+                public long run() {
+                    return IO.cksum_region(native_, 0x34, boxes, 0);
+                }
+            });
+        }
+
+        if (enabled(stages, "unscramble")) {
+            final Puzzle scrambled = IO.loadNative(new DataInputStream(new ByteArrayInputStream(native_)));
+            final byte[] original = scrambled.initializeUnscrambleData();
+            final byte[] solution = new byte[original.length];
+            Bench.measure(label + "Puzzle.tryUnscramble (one key)", new Bench.Task() {
+                int key = 1000;
+
+                public long run() {
+                    System.arraycopy(original, 0, solution, 0, original.length);
+                    key = (key == 9999) ? 1000 : key + 1;
+                    return scrambled.tryUnscramble(key, solution) ? 1 : 0;
+                }
+            });
+        }
+
+        // A full search of the key space on the largest grid takes seconds per
+        // operation, so it is only timed on the realistic sizes.
+        if (enabled(stages, "search") && generator.getSize() <= 21) {
+            final Puzzle scrambled = IO.loadNative(new DataInputStream(new ByteArrayInputStream(native_)));
+            final Unscrambler unscrambler = new Unscrambler();
+            Bench.measure(label + "Unscrambler.findKey (all keys)", new Bench.Task() {
+                public long run() {
+                    return unscrambler.findKey(scrambled);
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package com.totsp.crossword.bench;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.util.Arrays;
+import java.util.Scanner;
+
+import com.totsp.crossword.io.JPZIO;
+
+/**
+ * Compares the single-pass transcoder behind JPZIO.filterJPZStream with the
+ * two Scanner passes Convert used to make (five replaceAll calls per line,
+ * then a second read as ISO-8859-1), on generated puzzles with long notes.
+ * The old passes also percent-encoded '%' and '+' for the clue decoder,
+ * which the parser no longer needs; they are timed as they were and
+ * checked without that step.
+ */
+public class TranscodeBench {
+
+    /**
+     * The substitution and charset passes from the original Convert, run in
+     * memory instead of through temporary files.
+     */
+    static byte[] legacyFilter(byte[] jpz, boolean escapePercent) throws Exception {
+        Scanner in = new Scanner(new ByteArrayInputStream(jpz), "utf-8");
+        ByteArrayOutputStream repl = new ByteArrayOutputStream(jpz.length);
+        OutputStreamWriter out = new OutputStreamWriter(repl, "utf-8");
+        while (in.hasNextLine()) {
+            String line = in.nextLine();
+            line = line.replaceAll("&nbsp;", " ");
+            if (escapePercent) {
+                line = line.replaceAll("%", "%25");
+                line = line.replaceAll("\\+", "%2B");
+            }
+            line = line.replaceAll("\u201C", "\"");
+            line = line.replaceAll("\u201D", "\"");
+            out.write(line + "\n");
+        }
+        out.close();
+
+        in = new Scanner(new ByteArrayInputStream(repl.toByteArray()), "iso8859-1");
+        ByteArrayOutputStream fixed = new ByteArrayOutputStream(repl.size() * 2);
+        out = new OutputStreamWriter(fixed, "utf-8");
+        while (in.hasNextLine()) {
+            out.write(in.nextLine() + "\n");
+        }
+        out.close();
+        return fixed.toByteArray();
+    }
+
+    static byte[] filter(byte[] jpz) throws Exception {
+        InputStream is = JPZIO.filterJPZStream(new ByteArrayInputStream(jpz));
+        ByteArrayOutputStream out = new ByteArrayOutputStream(jpz.length * 2);
+        byte[] buffer = new byte[8192];
+        int n;
+        while ((n = is.read(buffer)) != -1) {
+            out.write(buffer, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+    static String notes(int paragraphs) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < paragraphs; i++) {
+            sb.append("Note ").append(i).append(": the theme answers add 10% more letters&nbsp;+ a")
+                .append(" \u201Cbonus\u201D caf\u00E9 entry, see r\u00E9sum\u00E9 at 17-Across.\r\n");
+        }
+        return sb.toString();
+    }
+
+    public static void main(String[] args) throws Exception {
+        for (int size : new int[] { 15, 21 }) {
+            for (int paragraphs : new int[] { 10, 2000 }) {
+                final byte[] jpz = new PuzzleGenerator(size, size).setNotes(notes(paragraphs)).toJPZBytes();
+                if (!Arrays.equals(legacyFilter(jpz, false), filter(jpz))) {
+                    throw new IllegalStateException("Transcoder output differs from the legacy passes");
+                }
+                String name = size + "x" + size + ", " + paragraphs + " note lines (" + jpz.length / 1024 + " KB)";
+                double legacy = Bench.measure(name + " legacy Scanner passes", new Bench.Task() {
+                    public long run() throws Exception {
+                        return legacyFilter(jpz, true).length;
+                    }
+                });
+                double transcoder = Bench.measure(name + " single-pass transcoder", new Bench.Task() {
+                    public long run() throws Exception {
+                        return filter(jpz).length;
+                    }
+                });
+                Bench.compare(name + " filter", legacy, transcoder);
+            }
+        }
+        System.out.println("sink " + Bench.sink());
+    }
+}
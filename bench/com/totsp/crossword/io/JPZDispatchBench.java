@@ -0,0 +1,117 @@
+package com.totsp.crossword.io;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import com.totsp.crossword.bench.Bench;
+import com.totsp.crossword.bench.PuzzleGenerator;
+
+/**
+ * Compares the token table used by JPZXMLParser with the chain of trim() and
+ * equalsIgnoreCase() calls it replaced, over the element names of generated
+ * grids, and times a full parse of the same grids.
+ */
+public class JPZDispatchBench {
+
+    /**
+     * The dispatch JPZXMLParser used before the token table, kept for
+     * comparison.  Returns the same tokens as Elements.lookup.
+     */
+    static int legacyLookup(String strippedName, String tagName) {
+        strippedName = strippedName.trim();
+        String name = strippedName.length() == 0 ? tagName.trim() : strippedName;
+        if (name.equalsIgnoreCase("metadata")) {
+            return JPZIO.Elements.METADATA;
+        } else if (name.equalsIgnoreCase("title")) {
+            return JPZIO.Elements.TITLE;
+        } else if (name.equalsIgnoreCase("creator")) {
+            return JPZIO.Elements.CREATOR;
+        } else if (name.equalsIgnoreCase("copyright")) {
+            return JPZIO.Elements.COPYRIGHT;
+        } else if (name.equalsIgnoreCase("description")) {
+            return JPZIO.Elements.DESCRIPTION;
+        } else if (name.equalsIgnoreCase("grid")) {
+            return JPZIO.Elements.GRID;
+        } else if (name.equalsIgnoreCase("cell")) {
+            return JPZIO.Elements.CELL;
+        } else if (name.equalsIgnoreCase("clues")) {
+            return JPZIO.Elements.CLUES;
+        } else if (name.equalsIgnoreCase("clue")) {
+            return JPZIO.Elements.CLUE;
+        } else if (name.equalsIgnoreCase("crossword")) {
+            return JPZIO.Elements.CROSSWORD;
+        }
+        return JPZIO.Elements.UNKNOWN;
+    }
+
+    /**
+     * Pulls the element names out of a document in order, the same sequence
+     * the SAX parser would report.
+     */
+    static String[] elementNames(String xml) {
+        List<String> names = new ArrayList<String>();
+        int i = 0;
+        while ((i = xml.indexOf('<', i)) >= 0) {
+            i++;
+            if (i < xml.length() && (xml.charAt(i) == '?' || xml.charAt(i) == '!')) {
+                continue;
+            }
+            if (i < xml.length() && xml.charAt(i) == '/') {
+                i++;
+            }
+            int end = i;
+            while (end < xml.length() && " />\n".indexOf(xml.charAt(end)) < 0) {
+                end++;
+            }
+            // Copy so the names don't share the document's backing array.
+            names.add(new String(xml.substring(i, end).toCharArray()));
+            i = end;
+        }
+        return names.toArray(new String[names.size()]);
+    }
+
+    public static void main(String[] args) throws Exception {
+        final JPZConverter converter = new JPZConverter();
+        for (int size : new int[] { 21, 255 }) {
+            PuzzleGenerator generator = new PuzzleGenerator(size, size);
+            final String[] names = elementNames(generator.toJPZ());
+            for (String name : names) {
+                if (legacyLookup(name, "") != JPZIO.Elements.lookup(name)) {
+                    throw new IllegalStateException("Dispatch mismatch for " + name);
+                }
+            }
+
+            double legacy = Bench.measure(size + "x" + size + " legacy dispatch (" + names.length + " names)",
+                new Bench.Task() {
+                    public long run() {
+                        long sum = 0;
+                        for (String name : names) {
+                            sum += legacyLookup(name, "");
+                        }
+                        return sum;
+                    }
+                });
+            double table = Bench.measure(size + "x" + size + " token table dispatch",
+                new Bench.Task() {
+                    public long run() {
+                        long sum = 0;
+                        for (String name : names) {
+                            sum += JPZIO.Elements.lookup(name);
+                        }
+                        return sum;
+                    }
+                });
+            Bench.compare(size + "x" + size + " dispatch", legacy, table);
+
+            final byte[] jpz = generator.toJPZBytes();
+            Bench.measure(size + "x" + size + " full JPZ parse", new Bench.Task() {
+                public long run() throws Exception {
+                    return converter.parse(JPZIO.filterJPZStream(new ByteArrayInputStream(jpz)), new Date()).getNumberOfClues();
+                }
+            });
+        }
+        System.out.println("sink " + Bench.sink());
+    }
+}
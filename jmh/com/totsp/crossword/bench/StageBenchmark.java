@@ -0,0 +1,106 @@
+package com.totsp.crossword.bench;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.totsp.crossword.io.IO;
+import com.totsp.crossword.io.JPZConverter;
+import com.totsp.crossword.io.JPZIO;
+import com.totsp.crossword.puz.Box;
+import com.totsp.crossword.puz.Puzzle;
+
+/**
+ * The stages StageBench times, as JMH benchmarks: the JPZ SAX parse, clue
+ * numbering in Puzzle.setBoxes, IO.saveNative, IO.loadNative,
+ * IO.cksum_region over the solution grid and a single Puzzle.tryUnscramble
+ * attempt, each on generated 15x15, 21x21 and 255x255 puzzles.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StageBenchmark {
+    @Param({ "15", "21", "255" })
+    public int size;
+
+    private final JPZConverter converter = new JPZConverter();
+    private byte[] jpz;
+    private Box[][] boxes;
+    private Puzzle puz;
+    private Puzzle target;
+    private byte[] native_;
+    private ByteArrayOutputStream out;
+    private Puzzle scrambled;
+    private byte[] original;
+    private byte[] solution;
+    private int key = 1000;
+
+    @Setup
+    public void setUp() throws Exception {
+        PuzzleGenerator generator = new PuzzleGenerator(size, size);
+        jpz = generator.toJPZBytes();
+        boxes = generator.toBoxes();
+        puz = generator.toPuzzle();
+        target = new Puzzle();
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        IO.saveNative(puz, new DataOutputStream(baos));
+        native_ = baos.toByteArray();
+        out = new ByteArrayOutputStream(native_.length);
+        scrambled = IO.loadNative(new DataInputStream(new ByteArrayInputStream(native_)));
+        original = scrambled.initializeUnscrambleData();
+        solution = new byte[original.length];
+    }
+
+    @Benchmark
+    public Puzzle parse() throws Exception {
+        return converter.parse(JPZIO.filterJPZStream(new ByteArrayInputStream(jpz)), new Date());
+    }
+
+    @Benchmark
+    public int number() {
+        target.setBoxes(boxes);
+        return target.getWidth();
+    }
+
+    @Benchmark
+    public int saveNative() throws Exception {
+        out.reset();
+        IO.saveNative(puz, new DataOutputStream(out));
+        return out.size();
+    }
+
+    @Benchmark
+    public Puzzle loadNative() throws Exception {
+        return IO.loadNative(new DataInputStream(new ByteArrayInputStream(native_)));
+    }
+
+    @Benchmark
+    public int cksum() {
+        return IO.cksum_region(native_, 0x34, size * size, 0);
+    }
+
+    @Benchmark
+    public boolean tryUnscramble() {
+        System.arraycopy(original, 0, solution, 0, original.length);
+        key = (key == 9999) ? 1000 : key + 1;
+        return scrambled.tryUnscramble(key, solution);
+    }
+}
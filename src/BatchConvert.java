@@ -0,0 +1,158 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.totsp.crossword.io.ConversionCache;
+
+
+/**
+ * Converts many .jpz files in one JVM.  Arguments may be files, directories
+ * (searched recursively for .jpz files) or glob patterns such as
+ * "feeds/*.jpz".  Files are converted through Convert.convertFile on a
+ * worker pool sized to the number of cores.
+ */
+public class BatchConvert {
+    private static final String GLOB_CHARS = "*?[{";
+
+    public static boolean convertAll(String[] args) throws Exception {
+        List<File> files = collectFiles(args);
+        if (files.isEmpty()) {
+            System.err.println("No .jpz files found.");
+            return false;
+        }
+
+        int threads = Math.min(Runtime.getRuntime().availableProcessors(), files.size());
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        List<Future<Boolean>> results = new ArrayList<Future<Boolean>>(files.size());
+        long incept = System.currentTimeMillis();
+        try {
+            for (final File f : files) {
+                results.add(pool.submit(new Callable<Boolean>() {
+                    public Boolean call() throws Exception {
+                        return Convert.convertFile(f);
+                    }
+                }));
+            }
+
+            int succeeded = 0;
+            List<String> failures = new ArrayList<String>();
+            for (int i = 0; i < files.size(); i++) {
+                try {
+                    if (results.get(i).get()) {
+                        succeeded++;
+                    } else {
+                        failures.add(files.get(i).getPath());
+                    }
+                } catch (ExecutionException e) {
+                    failures.add(files.get(i).getPath() + ": " + e.getCause().getMessage());
+                }
+            }
+            long elapsed = Math.max(1, System.currentTimeMillis() - incept);
+
+            for (String failure : failures) {
+                System.err.println("Failed: " + failure);
+            }
+            System.out.println("Converted " + succeeded + " of " + files.size() + " puzzles ("
+                    + failures.size() + " failed) in " + elapsed + " ms on " + threads
+                    + " threads, " + String.format("%.1f", files.size() * 1000.0 / elapsed)
+                    + " puzzles/s.");
+            ConversionCache cache = Convert.getCache();
+            if (cache != null) {
+                System.out.println("Cache: " + cache.getHits() + " hits, " + cache.getMisses()
+                        + " misses, " + cache.getSize() + " bytes in " + cache.getDirectory() + ".");
+            }
+            return failures.isEmpty();
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Expands the command line into the list of .jpz files to convert, without
+     * duplicates and in a stable order.
+     */
+    static List<File> collectFiles(String[] args) throws IOException {
+        return collectFiles(args, ".jpz");
+    }
+
+    /**
+     * Expands the command line into a list of files, searching directories
+     * for files ending in extension.
+     */
+    static List<File> collectFiles(String[] args, String extension) throws IOException {
+        Set<File> files = new LinkedHashSet<File>();
+        for (String arg : args) {
+            if (isGlob(arg)) {
+                addGlob(arg, files);
+            } else {
+                File f = new File(arg);
+                if (f.isDirectory()) {
+                    addMatching(f.toPath(), FileSystems.getDefault().getPathMatcher("glob:**" + extension), files);
+                } else if (f.isFile()) {
+                    files.add(f);
+                } else {
+                    System.err.println("Skipping " + arg + ": no such file or directory.");
+                }
+            }
+        }
+        return new ArrayList<File>(files);
+    }
+
+    private static boolean isGlob(String arg) {
+        for (int i = 0; i < arg.length(); i++) {
+            if (GLOB_CHARS.indexOf(arg.charAt(i)) >= 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void addGlob(String pattern, Set<File> files) throws IOException {
+        // Walk from the longest directory prefix that has no glob characters in it.
+        int firstGlob = 0;
+        while (GLOB_CHARS.indexOf(pattern.charAt(firstGlob)) < 0) {
+            firstGlob++;
+        }
+        int slash = Math.max(pattern.lastIndexOf('/', firstGlob),
+                pattern.lastIndexOf(File.separatorChar, firstGlob));
+        Path base = Paths.get(slash < 0 ? "." : (slash == 0 ? "/" : pattern.substring(0, slash)));
+        String glob = (slash < 0) ? base.resolve(pattern).toString() : pattern;
+        if (!base.toFile().isDirectory()) {
+            return;
+        }
+        addMatching(base, FileSystems.getDefault().getPathMatcher("glob:" + glob), files);
+    }
+
+    private static void addMatching(Path base, final PathMatcher matcher, Set<File> files)
+            throws IOException {
+        final List<File> found = new ArrayList<File>();
+        Files.walkFileTree(base, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                if (attrs.isRegularFile() && matcher.matches(file)) {
+                    found.add(file.toFile());
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        Collections.sort(found);
+        files.addAll(found);
+    }
+}
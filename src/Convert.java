@@ -1,93 +1,314 @@
+import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStreamWriter;
+import java.nio.file.Files;
 import java.util.Date;
-import java.util.Scanner;
+import java.util.HashSet;
+import java.util.Set;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
 
+import com.totsp.crossword.io.ConversionCache;
+import com.totsp.crossword.io.ConversionResult;
+import com.totsp.crossword.io.IO;
+import com.totsp.crossword.io.JPZConverter;
 import com.totsp.crossword.io.JPZIO;
 
 
 public class Convert {
+    private static final JPZConverter CONVERTER = new JPZConverter();
+
+    private static volatile ConversionCache cache;
+
+    /**
+     * Sets the cache that conversions check before parsing, or null to always
+     * convert.
+     */
+    public static void setCache(ConversionCache cache) {
+        Convert.cache = cache;
+    }
+
+    public static ConversionCache getCache() {
+        return cache;
+    }
+
+    /**
+     * Converts a .jpz file, or every puzzle in a zip archive, to .puz files
+     * next to it.  A .jpz is a zipped single puzzle, so its first entry is
+     * written to the .jpz's own name with a .puz extension; any other entries
+     * are named after the entry.
+     *
+     * With a cache set, the file is looked up by a digest of its raw bytes,
+     * so a hit skips the unzip as well as the parse.  Only files that hold a
+     * single puzzle are cached.
+     */
     public static boolean convertFile(File jpz)  throws Exception {
-        InputStream is = new FileInputStream(jpz);
-        File tmpFile = null;
+        ConversionCache c = cache;
+        byte[] raw = null;
+        String key = null;
+        if (c != null) {
+            raw = Files.readAllBytes(jpz.toPath());
+            key = ConversionCache.key(raw);
+            byte[] puz = c.get(key);
+            if (puz != null) {
+                return writeDocument(puz, puzFile(jpz));
+            }
+        }
 
-        // try reading as .zip file - if it fails, assume already decompressed
+        // Unzip, character substitution and charset fix-up all happen as
+        // in-memory stream stages feeding the parser; nothing is staged on disk.
+        BufferedInputStream is = new BufferedInputStream(
+                (raw != null) ? new ByteArrayInputStream(raw) : new FileInputStream(jpz));
         try {
-            ZipInputStream zis = new ZipInputStream(is);
-            ZipEntry entry = zis.getNextEntry();
-            String entryName = entry.getName();
-            tmpFile = new File(entryName + ".tmp");
-            BufferedOutputStream dest = new BufferedOutputStream(new FileOutputStream(tmpFile), 2048);
-            int count;
-            byte[] data = new byte[2048];
-            while ((count = zis.read(data, 0, 2048)) != -1) {
-                dest.write(data, 0, count);
+            if (!JPZIO.isZip(is)) {
+                if (raw == null) {
+                    return convertDocument(is, puzFile(jpz));
+                }
+                ConversionResult result = CONVERTER.convert(raw);
+                if (!result.isSuccess()) {
+                    System.err.println("Unable to parse XML file: " + result.getError().getMessage());
+                    System.err.println("Unable to convert puzzle.");
+                    return false;
+                }
+                c.put(key, result.getPuzBytes());
+                return writeDocument(result.getPuzBytes(), puzFile(jpz));
             }
-            dest.flush();
-            dest.close();
-            zis.close();
 
-            is = new FileInputStream(tmpFile);
-        } catch (Exception e) {
+            // Entries are parsed as they are inflated, in one pass over the archive.
+            ZipInputStream zis = new ZipInputStream(is);
+            boolean retVal = true;
+            int converted = 0;
+            boolean named = jpz.getName().endsWith(".jpz");
+            Set<String> names = new HashSet<String>();
+            ZipEntry entry;
+            while ((entry = zis.getNextEntry()) != null) {
+                if (entry.isDirectory()) {
+                    continue;
+                }
+                File output;
+                if (converted == 0 && named) {
+                    output = puzFile(jpz);
+                    names.add(output.getName());
+                } else {
+                    output = new File(jpz.getAbsoluteFile().getParentFile(), puzName(entry, names));
+                }
+                retVal &= convertDocument(entryStream(zis), output);
+                converted++;
+            }
+            if (converted == 0) {
+                System.err.println("Unable to convert puzzle: empty archive.");
+                return false;
+            }
+            if (c != null && retVal && converted == 1 && named) {
+                // A hit writes only the .jpz's own .puz, so only single puzzle archives are cached.
+                c.put(key, Files.readAllBytes(puzFile(jpz).toPath()));
+            }
+            return retVal;
+        } finally {
             is.close();
-            is = new FileInputStream(jpz);
         }
+    }
 
-        // Replace invalid characters with safe equivalents
-        File replFile = new File(jpz.getAbsoluteFile() + ".repl");
-        Scanner in = new Scanner(is, "utf-8");
-        OutputStreamWriter out = new OutputStreamWriter(new FileOutputStream(replFile), "utf-8");
-        while (in.hasNextLine()) {
-            String line = in.nextLine();
-            line = line.replaceAll("&nbsp;", " ");
-            line = line.replaceAll("%", "%25");
-            line = line.replaceAll("\\+", "%2B");
-            line = line.replaceAll("", "\"");
-            line = line.replaceAll("", "\"");
-            out.write(line + "\n");
+    /**
+     * Converts every puzzle in a zip archive into one output zip holding a
+     * .puz entry per input entry.  Each entry is written as soon as it has
+     * been inflated and parsed.  Entries that fail to convert are left out.
+     */
+    public static boolean convertArchive(File archive, File outputZip) throws Exception {
+        File tmp = tempFile(outputZip);
+        boolean retVal = true;
+        int converted = 0;
+        try {
+            ZipInputStream zis = new ZipInputStream(new BufferedInputStream(new FileInputStream(archive)));
+            ZipOutputStream zos = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            Set<String> names = new HashSet<String>();
+            try {
+                ZipEntry entry;
+                while ((entry = zis.getNextEntry()) != null) {
+                    if (entry.isDirectory()) {
+                        continue;
+                    }
+                    byte[] puz;
+                    try {
+                        puz = convertToBytes(entryStream(zis));
+                    } catch (Exception e) {
+                        System.err.println("Unable to convert " + entry.getName() + ": " + e.getMessage());
+                        retVal = false;
+                        continue;
+                    }
+                    zos.putNextEntry(new ZipEntry(puzName(entry, names)));
+                    zos.write(puz);
+                    zos.closeEntry();
+                    converted++;
+                }
+            } finally {
+                zis.close();
+                if (converted == 0) {
+                    // A zip with no entries can't be finished cleanly.
+                    zos.putNextEntry(new ZipEntry("EMPTY"));
+                    zos.closeEntry();
+                }
+                zos.close();
+            }
+            if (converted == 0) {
+                System.err.println("Unable to convert puzzle: no puzzles in archive.");
+                return false;
+            }
+            IO.replace(tmp, outputZip);
+        } finally {
+            tmp.delete();
         }
-        out.flush();
-        out.close();
-        is.close();
-
-        // Fix charset
-        File charFile = new File(jpz.getAbsolutePath() + ".char");
-        is = new FileInputStream(replFile);
-        in = new Scanner(is, "iso8859-1");
-        out = new OutputStreamWriter(new FileOutputStream(charFile), "utf-8");
-        while (in.hasNextLine()) {
-            out.write(in.nextLine() + "\n");
+        System.out.println("Converted " + converted + " puzzles into " + outputZip + ".");
+        return retVal;
+    }
+
+    /**
+     * Converts one raw JPZ document to output, and closes the document.
+     */
+    private static boolean convertDocument(InputStream document, File output) throws Exception {
+        File tmp = tempFile(output);
+        boolean retVal;
+        try {
+            DataOutputStream os = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            try {
+                retVal = JPZIO.convertJPZPuzzle(JPZIO.openJPZStream(document), os, new Date());
+            } finally {
+                os.close();
+            }
+            if (retVal) {
+                IO.replace(tmp, output);
+            }
+        } finally {
+            tmp.delete();
         }
-        out.flush();
-        out.close();
-        is.close();
-
-        is = new FileInputStream(charFile);
-        File output = new File(jpz.getAbsolutePath().replace(".jpz", ".puz"));
-        DataOutputStream os = new DataOutputStream(new FileOutputStream(output));
-        boolean retVal = JPZIO.convertJPZPuzzle(is, os, new Date());
-        os.close();
         if (!retVal) {
             System.err.println("Unable to convert puzzle.");
-            output.delete();
         } else {
             System.out.println("Puzzle converted successfully.");
         }
 
-        is.close();
+        return retVal;
+    }
 
-        replFile.delete();
-        charFile.delete();
-        if (tmpFile != null) {
-            tmpFile.delete();
+    /**
+     * Writes .puz bytes that are already converted to output.
+     */
+    private static boolean writeDocument(byte[] puz, File output) throws IOException {
+        File tmp = tempFile(output);
+        try {
+            FileOutputStream os = new FileOutputStream(tmp);
+            try {
+                os.write(puz);
+            } finally {
+                os.close();
+            }
+            IO.replace(tmp, output);
+        } finally {
+            tmp.delete();
         }
-        return retVal;
+        System.out.println("Puzzle converted successfully.");
+        return true;
+    }
+
+    /**
+     * Creates a hidden temporary file next to target to write it through.
+     */
+    private static File tempFile(File target) throws IOException {
+        File dir = target.getAbsoluteFile().getParentFile();
+        return File.createTempFile("." + target.getName(), ".tmp", dir);
+    }
+
+    /**
+     * Converts the puzzle read from is, zipped or not, in memory.  Only the
+     * first entry of an archive is converted.  Throws the reason if it can't
+     * be converted.  Nothing is logged.
+     */
+    static byte[] convertStream(InputStream is) throws Exception {
+        return convertToBytes(is);
+    }
+
+    /**
+     * Converts one JPZ document, zipped or not, in memory, going through the
+     * cache when there is one.  The cache is keyed by the bytes exactly as
+     * read, so a hit on a zipped document doesn't unzip it.  Closes the
+     * document, and throws the reason if it can't be converted.
+     */
+    private static byte[] convertToBytes(InputStream document) throws Exception {
+        byte[] raw;
+        try {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = document.read(buffer)) != -1) {
+                bos.write(buffer, 0, n);
+            }
+            raw = bos.toByteArray();
+        } finally {
+            document.close();
+        }
+
+        ConversionCache c = cache;
+        String key = null;
+        if (c != null) {
+            key = ConversionCache.key(raw);
+            byte[] puz = c.get(key);
+            if (puz != null) {
+                return puz;
+            }
+        }
+
+        ConversionResult result = CONVERTER.convert(raw);
+        if (!result.isSuccess()) {
+            throw result.getError();
+        }
+        if (c != null) {
+            c.put(key, result.getPuzBytes());
+        }
+        return result.getPuzBytes();
+    }
+
+    /**
+     * Wraps the current entry of an archive so that closing it leaves the
+     * archive open for the next entry.
+     */
+    private static InputStream entryStream(ZipInputStream zis) {
+        return new FilterInputStream(zis) {
+            @Override
+            public void close() {
+            }
+        };
+    }
+
+    private static File puzFile(File jpz) {
+        return new File(jpz.getAbsolutePath().replace(".jpz", ".puz"));
+    }
+
+    /**
+     * Names the .puz for an archive entry after the entry's file name, without
+     * any directories, so entries can't be written outside the target.  Names
+     * already in the used set get a numeric suffix, so entries with the same file name
+     * in different directories don't overwrite each other.  The name chosen is
+     * added to used.
+     */
+    private static String puzName(ZipEntry entry, Set<String> used) {
+        String name = entry.getName();
+        name = name.substring(name.lastIndexOf('/') + 1);
+        name = name.substring(name.lastIndexOf('\\') + 1);
+        int dot = name.lastIndexOf('.');
+        String base = (dot > 0) ? name.substring(0, dot) : name;
+        String puzName = base + ".puz";
+        for (int n = 2; !used.add(puzName); n++) {
+            puzName = base + "-" + n + ".puz";
+        }
+        return puzName;
     }
 }
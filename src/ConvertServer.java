@@ -0,0 +1,169 @@
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+
+/**
+ * Keeps a warmed-up converter running behind a local HTTP endpoint, so
+ * scripts that convert one puzzle at a time don't pay JVM startup for each.
+ * POST a .jpz, zipped or not, to /convert and the response body is the .puz.
+ * A puzzle that can't be converted gets a 422 with the reason as text, and a
+ * body larger than MAX_BODY gets a 413 without being converted.
+ *
+ *   curl --data-binary @puzzle.jpz -o puzzle.puz http://localhost:8089/convert
+ *
+ * The server only listens on the loopback interface.  Requests run on a
+ * fixed pool of one thread per processor; when its queue is full the
+ * server's dispatcher thread handles the request itself, which stops it
+ * accepting more until the pool catches up.
+ */
+public class ConvertServer {
+    public static final int DEFAULT_PORT = 8089;
+    // Far more than the largest puzzle, zipped or not.
+    public static final int MAX_BODY = 16 * 1024 * 1024;
+    private static final int QUEUE_SIZE = 64;
+
+    private final HttpServer server;
+    private final ThreadPoolExecutor pool;
+
+    public ConvertServer(int port) throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/convert", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    convert(exchange);
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+        int threads = Runtime.getRuntime().availableProcessors();
+        pool = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(QUEUE_SIZE), new ThreadPoolExecutor.CallerRunsPolicy());
+        server.setExecutor(pool);
+    }
+
+    public void start() {
+        server.start();
+        System.out.println("Listening on http://" + server.getAddress().getHostString() + ":"
+                + server.getAddress().getPort() + "/convert");
+    }
+
+    public void stop() {
+        server.stop(0);
+        pool.shutdown();
+    }
+
+    private static void convert(HttpExchange exchange) throws IOException {
+        if (!"POST".equals(exchange.getRequestMethod())) {
+            exchange.getResponseHeaders().set("Allow", "POST");
+            send(exchange, 405, "Only POST is supported.");
+            return;
+        }
+
+        String length = exchange.getRequestHeaders().getFirst("Content-Length");
+        if (length != null && isTooLarge(length)) {
+            send(exchange, 413, "Request body is larger than " + MAX_BODY + " bytes.");
+            return;
+        }
+
+        byte[] puz;
+        try {
+            puz = Convert.convertStream(new LimitedInputStream(exchange.getRequestBody(), MAX_BODY));
+        } catch (BodyTooLargeException e) {
+            send(exchange, 413, e.getMessage());
+            return;
+        } catch (Exception e) {
+            send(exchange, 422, "Unable to convert puzzle: " + e.getMessage());
+            return;
+        }
+
+        exchange.getResponseHeaders().set("Content-Type", "application/x-crossword");
+        exchange.sendResponseHeaders(200, puz.length);
+        OutputStream os = exchange.getResponseBody();
+        os.write(puz);
+        os.close();
+    }
+
+    private static boolean isTooLarge(String contentLength) {
+        try {
+            return Long.parseLong(contentLength.trim()) > MAX_BODY;
+        } catch (NumberFormatException e) {
+            // Left to the stream limit.
+            return false;
+        }
+    }
+
+    private static void send(HttpExchange exchange, int status, String message) throws IOException {
+        byte[] body = (message + "\n").getBytes("UTF-8");
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(status, body.length);
+        OutputStream os = exchange.getResponseBody();
+        os.write(body);
+        os.close();
+    }
+
+    private static class BodyTooLargeException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        BodyTooLargeException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Passes at most limit bytes of a request body through, and throws once
+     * the body goes past it, so a chunked upload with no Content-Length can't
+     * be buffered without bound either.
+     */
+    private static class LimitedInputStream extends FilterInputStream {
+        private long remaining;
+
+        LimitedInputStream(InputStream in, long limit) {
+            super(in);
+            this.remaining = limit;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                consumed(1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                consumed(n);
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            consumed(skipped);
+            return skipped;
+        }
+
+        private void consumed(long n) throws BodyTooLargeException {
+            remaining -= n;
+            if (remaining < 0) {
+                throw new BodyTooLargeException("Request body is larger than " + MAX_BODY + " bytes.");
+            }
+        }
+    }
+}
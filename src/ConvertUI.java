@@ -2,18 +2,37 @@ import java.awt.BorderLayout;
 import java.awt.EventQueue;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
+import java.beans.PropertyChangeEvent;
+import java.beans.PropertyChangeListener;
 import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
 import java.util.prefs.Preferences;
 
 import javax.swing.JButton;
 import javax.swing.JFileChooser;
 import javax.swing.JFrame;
+import javax.swing.JLabel;
 import javax.swing.JOptionPane;
+import javax.swing.JPanel;
+import javax.swing.JProgressBar;
+import javax.swing.SwingWorker;
+
+import com.totsp.crossword.io.ConversionCache;
 
 
 public class ConvertUI {
 
+    private static final long CACHE_SIZE = 256L * 1024 * 1024;
+
     private JFrame frame;
+    private JButton btnSelect;
+    private JButton btnCancel;
+    private JProgressBar progress;
+    private JLabel status;
+    private ConversionWorker worker;
     private JFileChooser fc = new JFileChooser();
     private Preferences prefs = Preferences.userNodeForPackage(ConvertUI.class);
 
@@ -21,9 +40,31 @@ public class ConvertUI {
      * Launch the application.
      */
     public static void main(String[] args) throws Exception {
-        if (args.length == 1) {
+        if (args.length >= 2 && args[0].equals("--cache")) {
+            Convert.setCache(new ConversionCache(new File(args[1]), CACHE_SIZE));
+            args = Arrays.copyOfRange(args, 2, args.length);
+        }
+
+        if (args.length == 2 && args[0].equals("--watch")) {
+            new WatchConvert(new File(args[1])).run();
+        } else if (args.length >= 1 && args[0].equals("--serve")) {
+            int port = (args.length > 1) ? Integer.parseInt(args[1]) : ConvertServer.DEFAULT_PORT;
+            new ConvertServer(port).start();
+        } else if (args.length == 1 && new File(args[0]).isFile()) {
             File jpz = new File(args[0]);
             Convert.convertFile(jpz);
+        } else if (args.length >= 3 && args[0].equals("--dedup")) {
+            if (!DedupScan.scanAll(new File(args[1]), Arrays.copyOfRange(args, 2, args.length))) {
+                System.exit(1);
+            }
+        } else if (args.length == 3 && args[0].equals("--zip-output")) {
+            if (!Convert.convertArchive(new File(args[2]), new File(args[1]))) {
+                System.exit(1);
+            }
+        } else if (args.length > 0) {
+            if (!BatchConvert.convertAll(args)) {
+                System.exit(1);
+            }
         } else {
             EventQueue.invokeLater(new Runnable() {
                 public void run() {
@@ -50,11 +91,12 @@ public class ConvertUI {
      */
     private void initialize() {
         frame = new JFrame();
-        frame.setBounds(100, 100, 218, 64);
+        frame.setBounds(100, 100, 360, 120);
         frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+        fc.setMultiSelectionEnabled(true);
 
-        JButton btnSelectjpzTo = new JButton("Select .jpz to convert...");
-        btnSelectjpzTo.addActionListener(new ActionListener() {
+        btnSelect = new JButton("Select .jpz files to convert...");
+        btnSelect.addActionListener(new ActionListener() {
             public void actionPerformed(ActionEvent arg0) {
                 File loc = null;
                 try {
@@ -65,21 +107,149 @@ public class ConvertUI {
                 fc.setCurrentDirectory(loc);
                 int retVal = fc.showOpenDialog(frame);
                 if (retVal == JFileChooser.APPROVE_OPTION) {
-                    File f = fc.getSelectedFile();
-                    prefs.put("jpz_dir", f.getParent());
-                    String msg = "Converted successfully!";
-                    try {
-                        if (!Convert.convertFile(f)) {
-                            msg = "Unable to convert.";
-                        }
-                    } catch (Exception e) {
-                       msg = "Unable to convert: " + e.getMessage();
+                    File[] files = fc.getSelectedFiles();
+                    if (files.length == 0) {
+                        return;
                     }
-                    JOptionPane.showMessageDialog(frame, msg);
+                    prefs.put("jpz_dir", files[0].getParent());
+                    start(files);
                 }
             }
         });
-        frame.getContentPane().add(btnSelectjpzTo, BorderLayout.CENTER);
+
+        btnCancel = new JButton("Cancel");
+        btnCancel.setEnabled(false);
+        btnCancel.addActionListener(new ActionListener() {
+            public void actionPerformed(ActionEvent arg0) {
+                if (worker != null) {
+                    // Let the file in progress finish rather than leave a partial .puz behind.
+                    worker.requestStop();
+                    btnCancel.setEnabled(false);
+                    status.setText("Cancelling after the current file...");
+                }
+            }
+        });
+
+        progress = new JProgressBar(0, 100);
+        progress.setStringPainted(true);
+        status = new JLabel("Select one or more puzzles.");
+
+        JPanel south = new JPanel(new BorderLayout());
+        south.add(progress, BorderLayout.CENTER);
+        south.add(btnCancel, BorderLayout.EAST);
+        south.add(status, BorderLayout.SOUTH);
+
+        frame.getContentPane().add(btnSelect, BorderLayout.CENTER);
+        frame.getContentPane().add(south, BorderLayout.SOUTH);
+    }
+
+    private void start(File[] files) {
+        btnSelect.setEnabled(false);
+        btnCancel.setEnabled(true);
+        progress.setValue(0);
+        worker = new ConversionWorker(files);
+        worker.addPropertyChangeListener(new PropertyChangeListener() {
+            public void propertyChange(PropertyChangeEvent evt) {
+                if ("progress".equals(evt.getPropertyName())) {
+                    progress.setValue((Integer) evt.getNewValue());
+                }
+            }
+        });
+        worker.execute();
+    }
+
+    /**
+     * Converts the selected files off the event dispatch thread, reporting
+     * each file as it finishes.  A stop request is honoured before the next
+     * file; the UI is only released once the worker has returned.
+     */
+    private class ConversionWorker extends SwingWorker<ConversionWorker.Outcome, String> {
+        private final File[] files;
+        private volatile boolean stopRequested = false;
+
+        /**
+         * What a finished run did, handed to the event dispatch thread by get().
+         */
+        class Outcome {
+            final int processed;
+            final List<String> failures;
+            final boolean stopped;
+
+            Outcome(int processed, List<String> failures, boolean stopped) {
+                this.processed = processed;
+                this.failures = failures;
+                this.stopped = stopped;
+            }
+        }
+
+        ConversionWorker(File[] files) {
+            this.files = files;
+        }
+
+        void requestStop() {
+            stopRequested = true;
+        }
+
+        @Override
+        protected Outcome doInBackground() {
+            long incept = System.currentTimeMillis();
+            List<String> failures = new ArrayList<String>();
+            int done = 0;
+            for (File f : files) {
+                if (stopRequested) {
+                    break;
+                }
+                try {
+                    if (!Convert.convertFile(f)) {
+                        failures.add(f.getName());
+                    }
+                } catch (Exception e) {
+                    failures.add(f.getName() + ": " + e.getMessage());
+                }
+                done++;
+                long elapsed = Math.max(1, System.currentTimeMillis() - incept);
+                publish(done + " of " + files.length + ": " + f.getName() + ", "
+                        + String.format("%.1f", done * 1000.0 / elapsed) + " puzzles/s");
+                setProgress((done * 100) / files.length);
+            }
+            return new Outcome(done, failures, done < files.length);
+        }
+
+        @Override
+        protected void process(List<String> chunks) {
+            status.setText(chunks.get(chunks.size() - 1));
+        }
+
+        @Override
+        protected void done() {
+            btnSelect.setEnabled(true);
+            btnCancel.setEnabled(false);
+            worker = null;
+
+            String msg;
+            try {
+                Outcome outcome = get();
+                if (outcome.stopped) {
+                    msg = "Cancelled after " + outcome.processed + " of " + files.length + " puzzles.";
+                } else if (outcome.failures.isEmpty()) {
+                    msg = (files.length == 1) ? "Converted successfully!"
+                            : "Converted " + files.length + " puzzles successfully!";
+                } else {
+                    StringBuilder sb = new StringBuilder("Unable to convert:");
+                    for (String failure : outcome.failures) {
+                        sb.append("\n").append(failure);
+                    }
+                    msg = sb.toString();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (ExecutionException e) {
+                msg = "Unable to convert: " + e.getCause().getMessage();
+            }
+            status.setText(msg.split("\n")[0]);
+            JOptionPane.showMessageDialog(frame, msg);
+        }
     }
 
 }
@@ -0,0 +1,49 @@
+import java.io.File;
+import java.util.List;
+
+import com.totsp.crossword.io.GridIndex;
+
+
+/**
+ * Checks .puz files against a GridIndex and reports the ones whose solution
+ * grid has been seen before, adding the new ones to the index.  Arguments are
+ * files, directories (searched recursively for .puz files) or glob patterns,
+ * as for BatchConvert.  The index is kept between runs, so a new batch is
+ * checked against everything scanned before it.
+ */
+public class DedupScan {
+
+    public static boolean scanAll(File indexFile, String[] args) throws Exception {
+        List<File> files = BatchConvert.collectFiles(args, ".puz");
+        if (files.isEmpty()) {
+            System.err.println("No .puz files found.");
+            return false;
+        }
+
+        GridIndex index = GridIndex.open(indexFile);
+        int duplicates = 0;
+        int failed = 0;
+        long incept = System.currentTimeMillis();
+        try {
+            for (File f : files) {
+                try {
+                    if (!index.add(f)) {
+                        System.out.println("Duplicate: " + f.getPath());
+                        duplicates++;
+                    }
+                } catch (Exception e) {
+                    System.err.println("Failed: " + f.getPath() + ": " + e.getMessage());
+                    failed++;
+                }
+            }
+        } finally {
+            index.close();
+        }
+        long elapsed = Math.max(1, System.currentTimeMillis() - incept);
+
+        System.out.println("Scanned " + files.size() + " puzzles (" + duplicates + " duplicates, "
+                + failed + " failed) in " + elapsed + " ms; " + index.size() + " grids in "
+                + indexFile + ".");
+        return failed == 0;
+    }
+}
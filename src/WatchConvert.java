@@ -0,0 +1,164 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Watches a spool directory and converts .jpz files as they land in it.
+ *
+ * A file is only converted once it has stopped changing: no watch events
+ * for QUIET_MILLIS and the same size and modification time on two checks in
+ * a row, so a download still being written isn't picked up half way.
+ * Conversions run on a fixed pool with a bounded queue.  When the queue is
+ * full the watching thread converts the file itself, which stops it taking
+ * on more work until the pool catches up.  Convert writes each .puz to a
+ * temporary file and moves it into place, so readers of the spool never see
+ * a partial .puz.
+ *
+ * .jpz files already in the directory without an up to date .puz are
+ * converted at startup, and the directory is rescanned the same way if the
+ * watch service reports that it dropped events.
+ */
+public class WatchConvert {
+    private static final long QUIET_MILLIS = 500;
+    private static final long POLL_MILLIS = 250;
+    private static final int QUEUE_SIZE = 64;
+
+    private final File dir;
+    private final ThreadPoolExecutor pool;
+    private final Map<File, Pending> pending = new HashMap<File, Pending>();
+
+    /**
+     * A file seen changing, with what it looked like when last checked.
+     */
+    private static class Pending {
+        long lastEvent;
+        long length = -1;
+        long modified = -1;
+    }
+
+    public WatchConvert(File dir) {
+        this.dir = dir;
+        int threads = Runtime.getRuntime().availableProcessors();
+        pool = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(QUEUE_SIZE), new ThreadPoolExecutor.CallerRunsPolicy());
+    }
+
+    /**
+     * Watches until the thread is interrupted.
+     */
+    public void run() throws IOException {
+        WatchService watcher = FileSystems.getDefault().newWatchService();
+        try {
+            dir.toPath().register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_MODIFY);
+            System.out.println("Watching " + dir + " for .jpz files.");
+            scan();
+            while (!Thread.currentThread().isInterrupted()) {
+                WatchKey key = watcher.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+                if (key != null) {
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                            scan();
+                        } else {
+                            seen(dir.toPath().resolve((Path) event.context()).toFile());
+                        }
+                    }
+                    if (!key.reset()) {
+                        System.err.println(dir + " is no longer accessible.");
+                        return;
+                    }
+                }
+                submitQuiet();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ClosedWatchServiceException e) {
+            // Shutting down.
+        } finally {
+            watcher.close();
+            pool.shutdown();
+        }
+    }
+
+    private void scan() {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File f : files) {
+            File puz = new File(f.getAbsolutePath().replace(".jpz", ".puz"));
+            if (isJPZ(f) && (!puz.exists() || puz.lastModified() < f.lastModified())) {
+                seen(f);
+            }
+        }
+    }
+
+    private void seen(File f) {
+        if (!isJPZ(f)) {
+            return;
+        }
+        Pending p = pending.get(f);
+        if (p == null) {
+            p = new Pending();
+            pending.put(f, p);
+        }
+        p.lastEvent = System.currentTimeMillis();
+    }
+
+    private void submitQuiet() {
+        long now = System.currentTimeMillis();
+        Iterator<Map.Entry<File, Pending>> it = pending.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<File, Pending> entry = it.next();
+            final File f = entry.getKey();
+            Pending p = entry.getValue();
+            if (now - p.lastEvent < QUIET_MILLIS) {
+                continue;
+            }
+            if (!f.isFile()) {
+                it.remove();
+                continue;
+            }
+            long length = f.length();
+            long modified = f.lastModified();
+            if (length != p.length || modified != p.modified) {
+                // Still being written; look again after the next quiet period.
+                p.length = length;
+                p.modified = modified;
+                p.lastEvent = now;
+                continue;
+            }
+
+            it.remove();
+            pool.execute(new Runnable() {
+                public void run() {
+                    try {
+                        if (!Convert.convertFile(f)) {
+                            System.err.println("Failed: " + f);
+                        }
+                    } catch (Exception e) {
+                        System.err.println("Failed: " + f + ": " + e.getMessage());
+                    }
+                }
+            });
+        }
+    }
+
+    private static boolean isJPZ(File f) {
+        String name = f.getName();
+        return name.endsWith(".jpz") && !name.startsWith(".");
+    }
+}
@@ -0,0 +1,202 @@
+package com.totsp.crossword.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * On-disk cache of converted puzzles, keyed by the SHA-256 digest of the raw
+ * input they were converted from.  Each entry is a .puz file in the cache
+ * directory named after the hex digest.  The converter's version is part of
+ * the digest, so entries written by an older converter are never hit and
+ * age out as the least recently used.
+ *
+ * Recency and sizes are tracked in memory, seeded from the entries'
+ * modification times when the cache is opened; a hit also touches the
+ * file so the order survives a restart.  When the cache grows past its size
+ * limit, the least recently used entries are deleted until it is back under
+ * LOW_WATER of the limit, so the next few puts don't have to evict again.
+ *
+ * The .puz format has no field that depends on the conversion date, so a
+ * cached entry is byte for byte what a fresh conversion would write.  A
+ * single instance may be shared between threads; separate processes may
+ * share a directory, since entries are only ever replaced whole.
+ */
+public class ConversionCache {
+    private static final String SUFFIX = ".puz";
+    private static final double LOW_WATER = 0.9;
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private static final ThreadLocal<MessageDigest> DIGESTS = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            try {
+                return MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    };
+
+    private final File directory;
+    private final long maxBytes;
+    private final AtomicLong size = new AtomicLong();
+    // Entry sizes by key, least recently used first.  Guarded by this.
+    private final LinkedHashMap<String, Long> lru = new LinkedHashMap<String, Long>(16, 0.75f, true);
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    public ConversionCache(File directory, long maxBytes) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create cache directory " + directory);
+        }
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+
+        File[] files = entries();
+        final long[] used = new long[files.length];
+        for (int i = 0; i < files.length; i++) {
+            used[i] = files[i].lastModified();
+        }
+        Integer[] order = new Integer[files.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                return (used[a] < used[b]) ? -1 : ((used[a] == used[b]) ? 0 : 1);
+            }
+        });
+        for (Integer i : order) {
+            String name = files[i].getName();
+            long length = files[i].length();
+            lru.put(name.substring(0, name.length() - SUFFIX.length()), length);
+            size.addAndGet(length);
+        }
+    }
+
+    /**
+     * Returns the cache key for a JPZ document: the hex SHA-256 digest of
+     * JPZConverter.VERSION followed by its raw bytes.
+     */
+    public static String key(byte[] document) {
+        MessageDigest md = DIGESTS.get();
+        md.update((byte) (JPZConverter.VERSION >>> 24));
+        md.update((byte) (JPZConverter.VERSION >>> 16));
+        md.update((byte) (JPZConverter.VERSION >>> 8));
+        md.update((byte) JPZConverter.VERSION);
+        byte[] digest = md.digest(document);
+        char[] hex = new char[digest.length * 2];
+        for (int i = 0; i < digest.length; i++) {
+            hex[2 * i] = HEX[(digest[i] >> 4) & 0xF];
+            hex[(2 * i) + 1] = HEX[digest[i] & 0xF];
+        }
+        return new String(hex);
+    }
+
+    /**
+     * Returns the cached .puz bytes for key, or null on a miss.
+     */
+    public byte[] get(String key) {
+        File f = new File(directory, key + SUFFIX);
+        byte[] puz;
+        try {
+            puz = Files.readAllBytes(f.toPath());
+        } catch (IOException e) {
+            // Missing, or evicted by another thread or process between lookup and read.
+            synchronized (this) {
+                Long length = lru.remove(key);
+                if (length != null) {
+                    size.addAndGet(-length);
+                }
+            }
+            misses.incrementAndGet();
+            return null;
+        }
+        f.setLastModified(System.currentTimeMillis());
+        synchronized (this) {
+            if (lru.get(key) == null) {
+                // Written by another process sharing the directory.
+                lru.put(key, (long) puz.length);
+                size.addAndGet(puz.length);
+            }
+        }
+        hits.incrementAndGet();
+        return puz;
+    }
+
+    /**
+     * Stores the .puz bytes for key, evicting older entries if the cache is
+     * over its size limit.
+     */
+    public void put(String key, byte[] puz) throws IOException {
+        File f = new File(directory, key + SUFFIX);
+        File tmp = File.createTempFile("entry", ".tmp", directory);
+        try {
+            Files.write(tmp.toPath(), puz);
+            IO.replace(tmp, f);
+        } finally {
+            tmp.delete();
+        }
+        synchronized (this) {
+            Long replaced = lru.put(key, (long) puz.length);
+            size.addAndGet(puz.length - ((replaced == null) ? 0 : replaced));
+            if (size.get() > maxBytes) {
+                evict((long) (maxBytes * LOW_WATER));
+            }
+        }
+    }
+
+    /**
+     * Deletes least recently used entries until the cache holds at most
+     * target bytes.  Called holding the lock.
+     */
+    private void evict(long target) {
+        Iterator<Map.Entry<String, Long>> it = lru.entrySet().iterator();
+        while (it.hasNext() && size.get() > target) {
+            Map.Entry<String, Long> entry = it.next();
+            // Gone already if another process evicted it; either way it no longer counts.
+            new File(directory, entry.getKey() + SUFFIX).delete();
+            size.addAndGet(-entry.getValue());
+            it.remove();
+        }
+    }
+
+    private File[] entries() {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return new File[0];
+        }
+        int count = 0;
+        for (File f : files) {
+            if (f.getName().endsWith(SUFFIX)) {
+                files[count++] = f;
+            }
+        }
+        return Arrays.copyOf(files, count);
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getSize() {
+        return size.get();
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+}
@@ -0,0 +1,45 @@
+package com.totsp.crossword.io;
+
+import com.totsp.crossword.puz.Puzzle;
+
+/**
+ * The outcome of converting one JPZ document in memory: either the .puz
+ * bytes together with the parsed Puzzle, or the exception that stopped the
+ * conversion.
+ */
+public final class ConversionResult {
+    private final byte[] puzBytes;
+    private final Puzzle puzzle;
+    private final Exception error;
+
+    ConversionResult(byte[] puzBytes, Puzzle puzzle, Exception error) {
+        this.puzBytes = puzBytes;
+        this.puzzle = puzzle;
+        this.error = error;
+    }
+
+    public boolean isSuccess() {
+        return error == null;
+    }
+
+    /**
+     * Returns the puzzle in .puz format, or null if the conversion failed.
+     */
+    public byte[] getPuzBytes() {
+        return puzBytes;
+    }
+
+    /**
+     * Returns the parsed puzzle, or null if the conversion failed.
+     */
+    public Puzzle getPuzzle() {
+        return puzzle;
+    }
+
+    /**
+     * Returns why the conversion failed, or null if it succeeded.
+     */
+    public Exception getError() {
+        return error;
+    }
+}
@@ -0,0 +1,299 @@
+package com.totsp.crossword.io;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * On-disk index of the solution grids of .puz files, for finding the same
+ * puzzle among millions of files.  Only the header and the solution grid at
+ * 0x34 are read from each file; titles, clues and the player's grid are never
+ * touched.
+ *
+ * A grid is keyed by its dimensions, its Across Lite solution checksum and a
+ * 64-bit FNV-1a hash of its solution bytes, which include the '.' black
+ * squares, so two grids only match if their letters and shapes both do.
+ * Scrambled puzzles are indexed as stored.
+ *
+ * The index file is a memory-mapped open-addressing hash table of 16-byte
+ * slots after a 16-byte header, so a lookup is a few reads from one region of
+ * the mapping.  The table doubles when it is half full by rehashing into a
+ * new file that is moved over the old one.  An instance must not be used by
+ * more than one thread or process at a time.
+ */
+public class GridIndex implements Closeable {
+    private static final int MAGIC = 0x50555A58; // "PUZX"
+    private static final int VERSION = 1;
+    private static final int HEADER = 16;
+    private static final int SLOT = 16;
+    private static final int INITIAL_CAPACITY = 1 << 16;
+    // The whole table has to fit in one mapping.
+    private static final int MAX_CAPACITY = 1 << 26;
+    private static final int GRID = 0x34;
+
+    private final File file;
+    private RandomAccessFile raf;
+    private MappedByteBuffer table;
+    private int capacity;
+    private int count;
+    private byte[] buffer = new byte[GRID + 15 * 15];
+
+    private GridIndex(File file, RandomAccessFile raf, MappedByteBuffer table) throws IOException {
+        this.file = file;
+        this.raf = raf;
+        this.table = table;
+        if (table.limit() < HEADER || table.getInt(0) != MAGIC || table.getInt(4) != VERSION) {
+            throw new IOException(file + " is not a grid index.");
+        }
+        this.capacity = table.getInt(8);
+        this.count = table.getInt(12);
+        if (Integer.bitCount(capacity) != 1 || (long) HEADER + (long) capacity * SLOT > raf.length()) {
+            throw new IOException(file + " is damaged.");
+        }
+    }
+
+    /**
+     * Opens the index in file, creating an empty one if it doesn't exist.
+     */
+    public static GridIndex open(File file) throws IOException {
+        if (!file.exists()) {
+            create(file, INITIAL_CAPACITY).close();
+        }
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            return new GridIndex(file, raf, map(raf, raf.length()));
+        } catch (IOException e) {
+            raf.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Adds the grid of a .puz file.  Returns true if it wasn't in the index
+     * already.
+     */
+    public boolean add(File puz) throws IOException {
+        int cells = readGrid(puz);
+        return add(buffer[0x2C] & 0xFF, buffer[0x2D] & 0xFF, buffer, GRID, cells);
+    }
+
+    /**
+     * Returns true if the grid of a .puz file is in the index.
+     */
+    public boolean contains(File puz) throws IOException {
+        int cells = readGrid(puz);
+        long meta = meta(buffer[0x2C] & 0xFF, buffer[0x2D] & 0xFF, buffer, GRID, cells);
+        return find(key(buffer, GRID, cells), meta) >= 0;
+    }
+
+    /**
+     * Adds a solution grid, one byte per cell row by row with '.' for black
+     * squares.  Returns true if it wasn't in the index already.
+     */
+    public boolean add(int width, int height, byte[] solution) throws IOException {
+        return add(width, height, solution, 0, width * height);
+    }
+
+    public boolean contains(int width, int height, byte[] solution) {
+        int cells = width * height;
+        return find(key(solution, 0, cells), meta(width, height, solution, 0, cells)) >= 0;
+    }
+
+    /**
+     * Returns the number of distinct grids in the index.
+     */
+    public int size() {
+        return count;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Writes the index out and closes it.
+     */
+    public void close() throws IOException {
+        if (raf != null) {
+            table.force();
+            raf.close();
+            raf = null;
+            table = null;
+        }
+    }
+
+    private boolean add(int width, int height, byte[] solution, int offset, int cells)
+            throws IOException {
+        long key = key(solution, offset, cells);
+        long meta = meta(width, height, solution, offset, cells);
+        int slot = find(key, meta);
+        if (slot >= 0) {
+            return false;
+        }
+        if ((count + 1) * 2L > capacity) {
+            grow();
+            slot = find(key, meta);
+        }
+        put(table, ~slot, key, meta);
+        table.putInt(12, ++count);
+        return true;
+    }
+
+    /**
+     * Returns the slot holding key and meta, or the one's complement of the
+     * empty slot where they belong.
+     */
+    private int find(long key, long meta) {
+        int mask = capacity - 1;
+        int slot = spread(key) & mask;
+        while (true) {
+            int position = HEADER + slot * SLOT;
+            long k = table.getLong(position);
+            if (k == 0) {
+                return ~slot;
+            }
+            if (k == key && table.getLong(position + 8) == meta) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    private void grow() throws IOException {
+        if (capacity == MAX_CAPACITY) {
+            // Past half full the table still works, just with longer probes.
+            if ((count + 1) * 4L > capacity * 3L) {
+                throw new IOException(file + " is full.");
+            }
+            return;
+        }
+
+        File tmp = File.createTempFile("." + file.getName(), ".tmp", file.getAbsoluteFile().getParentFile());
+        RandomAccessFile grown = create(tmp, capacity * 2);
+        try {
+            MappedByteBuffer bigger = map(grown, grown.length());
+            int mask = (capacity * 2) - 1;
+            for (int i = 0; i < capacity; i++) {
+                int position = HEADER + i * SLOT;
+                long k = table.getLong(position);
+                if (k == 0) {
+                    continue;
+                }
+                int slot = spread(k) & mask;
+                while (bigger.getLong(HEADER + slot * SLOT) != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                put(bigger, slot, k, table.getLong(position + 8));
+            }
+            bigger.putInt(12, count);
+            bigger.force();
+
+            IO.replace(tmp, file);
+            raf.close();
+            raf = grown;
+            table = bigger;
+            capacity *= 2;
+            grown = null;
+        } finally {
+            if (grown != null) {
+                grown.close();
+                tmp.delete();
+            }
+        }
+    }
+
+    /**
+     * Reads the header and solution grid of a .puz file into buffer, and
+     * returns the number of cells.
+     */
+    private int readGrid(File puz) throws IOException {
+        RandomAccessFile in = new RandomAccessFile(puz, "r");
+        try {
+            if (in.length() < GRID) {
+                throw new EOFException("Truncated .puz header.");
+            }
+            in.readFully(buffer, 0, GRID);
+            for (int i = 0; i < IO.FILE_MAGIC.length(); i++) {
+                if (buffer[0x02 + i] != IO.FILE_MAGIC.charAt(i)) {
+                    throw new IOException("Not a .puz file.");
+                }
+            }
+            int cells = (buffer[0x2C] & 0xFF) * (buffer[0x2D] & 0xFF);
+            if (buffer.length < GRID + cells) {
+                byte[] bigger = new byte[GRID + cells];
+                System.arraycopy(buffer, 0, bigger, 0, GRID);
+                buffer = bigger;
+            }
+            if (in.length() < GRID + cells) {
+                throw new EOFException("Truncated .puz grid.");
+            }
+            in.readFully(buffer, GRID, cells);
+            return cells;
+        } finally {
+            in.close();
+        }
+    }
+
+    private static RandomAccessFile create(File f, int capacity) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(f, "rw");
+        try {
+            raf.setLength(0);
+            // setLength fills the table with zeros, which are empty slots.
+            raf.setLength(HEADER + (long) capacity * SLOT);
+            MappedByteBuffer header = map(raf, HEADER);
+            header.putInt(0, MAGIC);
+            header.putInt(4, VERSION);
+            header.putInt(8, capacity);
+            header.putInt(12, 0);
+            return raf;
+        } catch (IOException e) {
+            raf.close();
+            throw e;
+        }
+    }
+
+    private static MappedByteBuffer map(RandomAccessFile raf, long length) throws IOException {
+        if (length > Integer.MAX_VALUE) {
+            throw new IOException("Grid index too large to map.");
+        }
+        MappedByteBuffer mapped = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+        mapped.order(ByteOrder.LITTLE_ENDIAN);
+        return mapped;
+    }
+
+    private static void put(MappedByteBuffer table, int slot, long key, long meta) {
+        int position = HEADER + slot * SLOT;
+        table.putLong(position + 8, meta);
+        table.putLong(position, key);
+    }
+
+    /**
+     * FNV-1a over the solution bytes.  Zero marks an empty slot, so a grid
+     * that hashes to it is stored as one.
+     */
+    private static long key(byte[] solution, int offset, int cells) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = offset; i < offset + cells; i++) {
+            hash ^= solution[i] & 0xFF;
+            hash *= 0x100000001b3L;
+        }
+        return (hash == 0) ? 1 : hash;
+    }
+
+    /**
+     * Packs the dimensions and solution checksum of a grid into one long.
+     */
+    private static long meta(int width, int height, byte[] solution, int offset, int cells) {
+        return ((long) width << 32) | ((long) height << 16) | IO.cksum_region(solution, offset, cells, 0);
+    }
+
+    private static int spread(long key) {
+        // The low bits of FNV-1a are weak on short inputs; take the table index from the high bits.
+        return (int) ((key * 0x9E3779B97F4A7C15L) >>> 32);
+    }
+}
@@ -12,138 +12,184 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.Charset;
-import java.util.ArrayList;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
 
-import com.totsp.crossword.puz.Box;
+import com.totsp.crossword.puz.Grid;
 import com.totsp.crossword.puz.Puzzle;
+import com.totsp.crossword.puz.WordSpans;
 
 
 public class IO {
   public static final String FILE_MAGIC = "ACROSS&DOWN";
   public static final String VERSION_STRING = "1.3";
 
-  private static final Charset CHARSET = Charset.forName("Cp1252");
+  static final Charset CHARSET = Charset.forName("Cp1252");
 
   // Extra Section IDs
   private static final int GEXT = 0;
 
   // GEXT section bitmasks
   private static final byte GEXT_SQUARE_CIRCLED = (byte) 0x80;
+  private static final byte[] GEXT_SECTION_TITLE = { 'G', 'E', 'X', 'T' };
 
     public static Puzzle loadNative(DataInputStream input) throws IOException {
-        Puzzle puz = new Puzzle();
+        return loadNative(ByteBuffer.wrap(readFully(input)));
+    }
 
-        input.skipBytes(0x18);
-        byte[] versionString = new byte[3];
-        for (int i = 0; i < versionString.length; i++) {
-            versionString[i] = input.readByte();
+    /**
+     * Loads a puzzle from a buffer holding a whole .puz file, starting at the
+     * buffer's position.  Header fields are read at their fixed offsets, the
+     * grids are copied straight into the puzzle's packed grid and strings are
+     * decoded in place, so nothing is read a byte at a time.
+     */
+    public static Puzzle loadNative(ByteBuffer buffer) throws IOException {
+        ByteBuffer bb = buffer.slice();
+        bb.order(ByteOrder.LITTLE_ENDIAN);
+        byte[] data;
+        int base;
+        if (bb.hasArray()) {
+            data = bb.array();
+            base = bb.arrayOffset();
+        } else {
+            data = new byte[bb.remaining()];
+            bb.get(data);
+            base = 0;
+        }
+        int end = base + bb.limit();
+        if (bb.limit() < 0x34) {
+            throw new EOFException("Truncated .puz header.");
         }
 
-        input.skip(1);
-        puz.setVersion(new String(versionString));
-
-        input.skipBytes(2);
-        puz.setSolutionChecksum(Short.reverseBytes(input.readShort()));
-
-        input.skipBytes(0xC);
+        Puzzle puz = new Puzzle();
+        puz.setVersion(new String(data, base + 0x18, 3, CHARSET));
+        puz.setSolutionChecksum(bb.getShort(0x1E));
 
-        puz.setWidth(0xFFFF & input.readByte());
-        puz.setHeight(0xFFFF & input.readByte());
-        puz.setNumberOfClues(Short.reverseBytes(input.readShort()));
+        int width = 0xFF & bb.get(0x2C);
+        int height = 0xFF & bb.get(0x2D);
+        puz.setWidth(width);
+        puz.setHeight(height);
+        puz.setNumberOfClues(bb.getShort(0x2E));
+        puz.setScrambled(bb.getShort(0x32) != 0);
 
-        input.skipBytes(2);
-        puz.setScrambled(input.readShort() != 0);
+        int numberOfBoxes = width * height;
+        int offset = base + 0x34;
+        if (offset + 2 * numberOfBoxes > end) {
+            throw new EOFException("Truncated .puz grid.");
+        }
+        Grid grid = new Grid(width, height);
+        grid.readNative(data, offset);
+        offset += 2 * numberOfBoxes;
+
+        puz.setGrid(grid);
+
+        int[] position = { offset };
+        puz.setTitle(readNullTerminatedString(data, position, end));
+        puz.setAuthor(readNullTerminatedString(data, position, end));
+        puz.setCopyright(readNullTerminatedString(data, position, end));
+
+        // Numbering flagged exactly the cells that start words, so the word
+        // counts size the clue arrays.
+        WordSpans spans = puz.getWordSpans();
+        int[] acrossCluesLookup = new int[spans.getAcrossWordCount()];
+        String[] acrossClues = new String[acrossCluesLookup.length];
+        int[] downCluesLookup = new int[spans.getDownWordCount()];
+        String[] downClues = new String[downCluesLookup.length];
+        String[] rawClues = new String[acrossClues.length + downClues.length];
+        int across = 0;
+        int down = 0;
+        int raw = 0;
+
+        for (int i = 0; i < numberOfBoxes; i++) {
+            if (grid.isBlock(i)) {
+                continue;
+            }
 
-        Box[][] boxes = new Box[puz.getHeight()][puz.getWidth()];
-        byte[] answerByte = new byte[1];
-        for (int x = 0; x < boxes.length; x++) {
-            for (int y = 0; y < boxes[x].length; y++) {
-              answerByte[0] = input.readByte();
-                char solution = new String(answerByte, CHARSET.name() ).charAt(0);
+            if (grid.isAcross(i) && (grid.getClueNumber(i) != 0)) {
+                String value = readNullTerminatedString(data, position, end);
 
-                if (solution != '.') {
-                    boxes[x][y] = new Box();
-                    boxes[x][y].setSolution((char) solution);
-                }
+                acrossCluesLookup[across] = grid.getClueNumber(i);
+                acrossClues[across++] = value;
+                rawClues[raw++] = value;
             }
-        }
 
-        for (int x = 0; x < boxes.length; x++) {
-            for (int y = 0; y < boxes[x].length; y++) {
-                answerByte[0] = input.readByte();
-                char answer = new String(answerByte, CHARSET.name()).charAt(0);
-
-                if (answer == '.') {
-                    continue;
-                } else if (answer == '-') {
-                    boxes[x][y].setResponse(' ');
-                } else {
-                    boxes[x][y].setResponse(answer);
-                }
+            if (grid.isDown(i) && (grid.getClueNumber(i) != 0)) {
+                String value = readNullTerminatedString(data, position, end);
+                downCluesLookup[down] = grid.getClueNumber(i);
+                downClues[down++] = value;
+                rawClues[raw++] = value;
             }
         }
 
-        puz.setBoxes(boxes);
-
-        puz.setTitle(readNullTerminatedString(input));
-        puz.setAuthor(readNullTerminatedString(input));
-        puz.setCopyright(readNullTerminatedString(input));
-
-        ArrayList<String> acrossClues = new ArrayList<String>();
-        ArrayList<Integer> acrossCluesLookup = new ArrayList<Integer>();
-        ArrayList<Integer> downCluesLookup = new ArrayList<Integer>();
-        ArrayList<String> downClues = new ArrayList<String>();
-        ArrayList<String> rawClues = new ArrayList<String>();
-
-        for (int x = 0; x < boxes.length; x++) {
-            for (int y = 0; y < boxes[x].length; y++) {
-                if (boxes[x][y] == null) {
-                    continue;
-                }
-
-                if (boxes[x][y].isAcross() && (boxes[x][y].getClueNumber() != 0)) {
-                    String value = readNullTerminatedString(input);
-
-                    acrossCluesLookup.add(boxes[x][y].getClueNumber());
-                    acrossClues.add(value);
-                    rawClues.add(value);
-                }
-
-                if (boxes[x][y].isDown() && (boxes[x][y].getClueNumber() != 0)) {
-                    String value = readNullTerminatedString(input);
-                    downCluesLookup.add(boxes[x][y].getClueNumber());
-                    downClues.add(value);
-                    rawClues.add(value);
+        puz.setDownClues(downClues);
+        puz.setDownClueNumbers(downCluesLookup);
+        puz.setAcrossClues(acrossClues);
+        puz.setAcrossClueNumbers(acrossCluesLookup);
+        puz.setRawClues(rawClues);
+
+        puz.setNotes(readNullTerminatedString(data, position, end));
+
+        // Extra sections: a four byte title, data length, checksum, data and a
+        // null terminator.  A truncated section ends the file, as EOF did.
+        offset = position[0];
+        while (offset + 8 <= end) {
+            int length = 0xFFFF & bb.getShort(offset + 4 - base);
+            int dataStart = offset + 8;
+            if (dataStart + length > end) {
+                break;
+            }
+            if (data[offset] == 'G' && data[offset + 1] == 'E' && data[offset + 2] == 'X'
+                    && data[offset + 3] == 'T') {
+                puz.setGEXT(true);
+                for (int i = 0; i < grid.size() && i < length; i++) {
+                    if ((data[dataStart + i] & GEXT_SQUARE_CIRCLED) != 0 && !grid.isBlock(i)) {
+                        grid.setCircled(i, true);
+                    }
                 }
             }
+            offset = dataStart + length + 1;
         }
 
-        puz.setDownClues(downClues.toArray(new String[downClues.size()]));
-        puz.setDownCluesLookup(downCluesLookup.toArray(new Integer[downCluesLookup.size()]));
-        puz.setAcrossClues(acrossClues.toArray(new String[acrossClues.size()]));
-        puz.setAcrossCluesLookup(acrossCluesLookup.toArray(new Integer[acrossCluesLookup.size()]));
-        puz.setRawClues(rawClues.toArray(new String[rawClues.size()]));
-
-        puz.setNotes(readNullTerminatedString(input));
-
-        boolean eof = false;
+        return puz;
+    }
 
-        while(!eof) {
-          try {
-            switch(readExtraSectionType(input)) {
-              case GEXT:
-                readGextSection(input, puz);
-                break;
-              default:
-                skipExtraSection(input);
+    private static byte[] readFully(InputStream is) throws IOException {
+        byte[] buffer = new byte[Math.max(is.available(), 8192)];
+        int count = 0;
+        int n;
+        while ((n = is.read(buffer, count, buffer.length - count)) != -1) {
+            count += n;
+            if (count == buffer.length) {
+                buffer = Arrays.copyOf(buffer, buffer.length * 2);
             }
-          } catch(EOFException e) {
-            eof = true;
-          }
         }
+        return (count == buffer.length) ? buffer : Arrays.copyOf(buffer, count);
+    }
 
-        return puz;
+    /**
+     * Decodes the null terminated string starting at position[0] and moves
+     * position[0] past its terminator.  Empty strings are returned as null.
+     */
+    private static String readNullTerminatedString(byte[] data, int[] position, int end)
+        throws IOException {
+        int start = position[0];
+        int terminator = start;
+        while (terminator < end && data[terminator] != 0) {
+            terminator++;
+        }
+        if (terminator == end) {
+            throw new EOFException("Unterminated string.");
+        }
+        if (terminator - start > 4096) {
+            throw new IOException("Run on string!");
+        }
+        position[0] = terminator + 1;
+        return (terminator == start) ? null : new String(data, start, terminator - start, CHARSET);
     }
 
     public static int readExtraSectionType(DataInputStream input) throws IOException {
@@ -168,16 +214,14 @@ public class IO {
     public static void readGextSection(DataInputStream input, Puzzle puz) throws IOException {
       puz.setGEXT(true);
       input.skipBytes(4);
-      Box[][] boxes = puz.getBoxes();
-        for (int x = 0; x < boxes.length; x++) {
-            for (int y = 0; y < boxes[x].length; y++) {
-              byte gextInfo = input.readByte();
-              if((gextInfo & GEXT_SQUARE_CIRCLED) != 0) {
-                if (boxes[x][y] != null) {
-                  boxes[x][y].setCircled(true);
-                }
-              }
+      Grid grid = puz.getGrid();
+        for (int i = 0; i < grid.size(); i++) {
+          byte gextInfo = input.readByte();
+          if((gextInfo & GEXT_SQUARE_CIRCLED) != 0) {
+            if (!grid.isBlock(i)) {
+              grid.setCircled(i, true);
             }
+          }
         }
         input.skipBytes(1);
     }
@@ -194,118 +238,145 @@ public class IO {
               throw new IOException("Run on string!");
             }
         }
-        return (baos.size() == 0) ? null : new String(baos.toByteArray(), CHARSET.name());
+        return (baos.size() == 0) ? null : new String(baos.toByteArray(), CHARSET);
     }
 
     public static void saveNative(Puzzle puz, DataOutputStream dos)
         throws IOException {
-      /*
-       * We write the puzzle to a temporary output stream, with 0 entered for any checksums.
-       * Once we have this written out, we can calculate all of the checksums and write the
-       * file to the original output stream.
-       */
-      ByteArrayOutputStream tmp = new ByteArrayOutputStream();
-      DataOutputStream tmpDos = new DataOutputStream(tmp);
-
-      tmpDos.writeShort(0);
-
-        tmpDos.writeBytes(FILE_MAGIC);
-        tmpDos.writeByte(0);
-
-        tmpDos.write(new byte[10]);
-
-        tmpDos.writeBytes(VERSION_STRING);
-        tmpDos.writeByte(0);
-
-        tmpDos.write(new byte[2]);
-
-        tmpDos.writeShort(Short.reverseBytes(puz.getSolutionChecksum()));
+        dos.write(toNativeBytes(puz));
+    }
 
-        tmpDos.write(new byte[0xC]);
+    /**
+     * Writes the puzzle to a channel, e.g. a FileChannel, in a single write of
+     * one exactly sized buffer.
+     */
+    public static void saveNative(Puzzle puz, WritableByteChannel channel)
+        throws IOException {
+        ByteBuffer bb = ByteBuffer.wrap(toNativeBytes(puz));
+        while (bb.hasRemaining()) {
+            channel.write(bb);
+        }
+    }
 
+    /**
+     * Serializes the puzzle in Across Lite format.  The size of every region is
+     * known before anything is written, so the file is laid out directly in
+     * one byte array of exactly the right length and the checksums are
+     * patched in place.
+     */
+    public static byte[] toNativeBytes(Puzzle puz) {
         int width = puz.getWidth();
         int height = puz.getHeight();
         int numberOfBoxes = width * height;
-
-        tmpDos.writeByte(width);
-        tmpDos.writeByte(height);
-
         int numberOfClues = puz.getNumberOfClues();
 
-        tmpDos.writeShort(Short.reverseBytes((short) numberOfClues));
-        tmpDos.writeShort(Short.reverseBytes((short) 1));
-
-        short scrambled = puz.isScrambled() ? (short) 4 : (short) 0;
-        tmpDos.writeShort(Short.reverseBytes(scrambled));
+        // Encode the strings up front; their lengths determine the file size.
+        String[] rawClues = puz.getRawClues();
+        byte[][] strings = new byte[rawClues.length + 4][];
+        strings[0] = encode(puz.getTitle());
+        strings[1] = encode(puz.getAuthor());
+        strings[2] = encode(puz.getCopyright());
+        for (int i = 0; i < rawClues.length; i++) {
+            strings[3 + i] = encode(rawClues[i]);
+        }
+        strings[strings.length - 1] = encode(puz.getNotes());
 
-        Box[][] boxes = puz.getBoxes();
-        byte[] gextSection = null;
+        int size = 0x34 + 2 * numberOfBoxes;
+        for (byte[] string : strings) {
+            size += string.length + 1;
+        }
         if (puz.getGEXT()) {
-          gextSection = new byte[numberOfBoxes];
+            size += 4 + 2 + 2 + numberOfBoxes + 1;
         }
 
-        for (int x = 0; x < boxes.length; x++) {
-            for (int y = 0; y < boxes[x].length; y++) {
-                if (boxes[x][y] == null) {
-                    tmpDos.writeByte('.');
-                } else {
-                  byte val = (byte) boxes[x][y].getSolution();//Character.toString().getBytes("Cp1252")[0];
-                  if (puz.getGEXT() && boxes[x][y].isCircled()) {
-                    gextSection[width*x+y] = GEXT_SQUARE_CIRCLED;
-                  }
-                    tmpDos.writeByte(val);
+        byte[] puzByteArray = new byte[size];
+        ByteBuffer bb = ByteBuffer.wrap(puzByteArray);
+        bb.order(ByteOrder.LITTLE_ENDIAN);
+
+        // Header.  Checksums at 0x00, 0x0E and 0x10 are filled in last.
+        bb.position(0x02);
+        bb.put(FILE_MAGIC.getBytes(CHARSET));
+        bb.position(0x18);
+        bb.put(VERSION_STRING.getBytes(CHARSET));
+        bb.putShort(0x1E, puz.getSolutionChecksum());
+        bb.put(0x2C, (byte) width);
+        bb.put(0x2D, (byte) height);
+        bb.putShort(0x2E, (short) numberOfClues);
+        bb.putShort(0x30, (short) 1);
+        bb.putShort(0x32, puz.isScrambled() ? (short) 4 : (short) 0);
+
+        // Each checksum is kept running as its region is emitted: the primary
+        // checksum chains the CIB, solution, grid and partial board, while the
+        // masked checksums cover the same regions individually.
+        int c_cib = cksum_region(puzByteArray, 0x2C, 8, 0);
+        int c_primary = c_cib;
+        int c_sol = 0;
+        int c_grid = 0;
+        int c_part = 0;
+        int c_gext = 0;
+
+        Grid grid = puz.getGrid();
+        boolean gext = puz.getGEXT();
+        int gextOffset = size - numberOfBoxes - 1;
+        int offset = 0x34;
+        for (int i = 0; i < numberOfBoxes; i++) {
+            byte val = '.';
+            byte gextInfo = 0;
+            if (!grid.isBlock(i)) {
+                val = grid.getSolutionByte(i);
+                if (gext && grid.isCircled(i)) {
+                    gextInfo = GEXT_SQUARE_CIRCLED;
                 }
             }
+            puzByteArray[offset++] = val;
+            c_sol = cksum_step(c_sol, val);
+            c_primary = cksum_step(c_primary, val);
+            if (gext) {
+                puzByteArray[gextOffset + i] = gextInfo;
+                c_gext = cksum_step(c_gext, gextInfo);
+            }
         }
 
-        for (int x = 0; x < boxes.length; x++) {
-            for (int y = 0; y < boxes[x].length; y++) {
-                if (boxes[x][y] == null) {
-                    tmpDos.writeByte('.');
-                } else {
-                  byte val = (byte) boxes[x][y].getResponse(); //Character.toString().getBytes("Cp1252")[0];
-                    tmpDos.writeByte((boxes[x][y].getResponse() == ' ') ? '-'
-                                                                : val);
+        for (int i = 0; i < numberOfBoxes; i++) {
+            byte val = '.';
+            if (!grid.isBlock(i)) {
+                val = grid.getResponseByte(i);
+                if (val == ' ') {
+                    val = '-';
                 }
             }
+            puzByteArray[offset++] = val;
+            c_grid = cksum_step(c_grid, val);
+            c_primary = cksum_step(c_primary, val);
         }
 
-        writeNullTerminatedString(tmpDos, puz.getTitle());
-        writeNullTerminatedString(tmpDos, puz.getAuthor());
-        writeNullTerminatedString(tmpDos, puz.getCopyright());
-
-        for (String clue : puz.getRawClues()) {
-            writeNullTerminatedString(tmpDos, clue);
+        // Strings follow the two grids; the array is zeroed, so skipping a
+        // byte after each writes its null terminator.  The partial board
+        // checksum covers clues without their terminators, and the title,
+        // author, copyright and notes with theirs when they are non-empty.
+        for (int i = 0; i < strings.length; i++) {
+            byte[] string = strings[i];
+            boolean clue = i > 2 && i < strings.length - 1;
+            int length = (clue || string.length == 0) ? string.length : string.length + 1;
+            for (int j = 0; j < length; j++) {
+                byte val = (j < string.length) ? string[j] : 0;
+                puzByteArray[offset + j] = val;
+                c_part = cksum_step(c_part, val);
+                c_primary = cksum_step(c_primary, val);
+            }
+            offset += string.length + 1;
         }
 
-        writeNullTerminatedString(tmpDos, puz.getNotes());
-
-        if (puz.getGEXT()) {
-          tmpDos.writeBytes("GEXT");
-          tmpDos.writeShort(Short.reverseBytes((short) numberOfBoxes));
-          // Calculate checksum here so we don't need to find this place in the file later.
-          int c_gext = cksum_region(gextSection, 0, numberOfBoxes, 0);
-          tmpDos.writeShort(Short.reverseBytes((short) c_gext));
-          tmpDos.write(gextSection);
-          tmpDos.writeByte(0);
+        if (gext) {
+            bb.position(offset);
+            bb.put(GEXT_SECTION_TITLE);
+            bb.putShort((short) numberOfBoxes);
+            bb.putShort((short) c_gext);
         }
 
-        tmpDos.flush();
-        byte[] puzByteArray = tmp.toByteArray();
-        ByteBuffer bb = ByteBuffer.wrap(puzByteArray);
-        bb.order(ByteOrder.LITTLE_ENDIAN);
-
-        // Calculate checksums and write to byte array.
-        int c_cib = cksum_cib(puzByteArray, 0);
         bb.putShort(0x0E, (short) c_cib);
-
-        int c_primary = cksum_primary_board(puzByteArray, numberOfBoxes, numberOfClues, c_cib);
         bb.putShort(0, (short) c_primary);
 
-        int c_sol = cksum_solution(puzByteArray, numberOfBoxes, 0);
-        int c_grid = cksum_grid(puzByteArray, numberOfBoxes, 0);
-        int c_part = cksum_partial_board(puzByteArray, numberOfBoxes, numberOfClues, 0);
-
         bb.position(0x10);
         bb.put((byte) (0x49 ^ (c_cib & 0xFF)));
         bb.put((byte) (0x43 ^ (c_sol & 0xFF)));
@@ -316,8 +387,11 @@ public class IO {
         bb.put((byte) (0x45 ^ ((c_grid & 0xFF00) >> 8)));
         bb.put((byte) (0x44 ^ ((c_part & 0xFF00) >> 8)));
 
-        // Dump byte array to output stream.
-        dos.write(puzByteArray);
+        return puzByteArray;
+    }
+
+    private static byte[] encode(String value) {
+        return (value == null) ? new byte[0] : value.getBytes(CHARSET);
     }
 
     public static void writeNullTerminatedString(OutputStream os, String value)
@@ -337,7 +411,11 @@ public class IO {
     public static void save(Puzzle puz, File baseFile) throws IOException {
       long incept = System.currentTimeMillis();
       FileOutputStream puzzle= new FileOutputStream(baseFile);
-      IO.save(puz, new DataOutputStream(puzzle));
+      try {
+          IO.saveNative(puz, puzzle.getChannel());
+      } finally {
+          puzzle.close();
+      }
       System.out.println("Save complete in "+(System.currentTimeMillis() - incept));
     }
 
@@ -347,63 +425,56 @@ public class IO {
         return puz;
     }
 
+    /**
+     * Moves a finished temporary file over target in one step where the file
+     * system allows it, so a reader never sees a partly written file.
+     */
+    public static void replace(File tmp, File target) throws IOException {
+        try {
+            Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
     public static Puzzle load(File baseFile) throws IOException {
       FileInputStream fis = new FileInputStream(baseFile);
-      Puzzle puz = IO.loadNative( new DataInputStream(fis));
-      fis.close();
-      return puz;
+      try {
+          ByteBuffer bb = ByteBuffer.allocate((int) baseFile.length());
+          FileChannel channel = fis.getChannel();
+          while (bb.hasRemaining() && channel.read(bb) != -1) {
+              // Keep reading until the whole file is in the buffer.
+          }
+          bb.flip();
+          return IO.loadNative(bb);
+      } finally {
+          fis.close();
+      }
     }
 
+    /**
+     * Across Lite checksum: for each byte, rotate the 16 bit sum right by one
+     * and add the byte.  The rotate is done with two shifts rather than
+     * a branch on the low bit; bits shifted past 16 are dropped by the final
+     * mask.  The loop is unrolled four ways.
+     */
     public static int cksum_region(byte[] data, int offset, int length, int cksum) {
-      for(int i = offset; i < offset + length; i++) {
-        if ((cksum & 0x1) != 0) {
-          cksum = (cksum >> 1) + 0x8000;
-        } else {
-          cksum = cksum >> 1;
-        }
-        cksum += (0xFF & data[i]);
-        cksum = cksum & 0xFFFF;
+      int i = offset;
+      int end = offset + length;
+      for (; i + 3 < end; i += 4) {
+        cksum = (((cksum >>> 1) | (cksum << 15)) + (0xFF & data[i])) & 0xFFFF;
+        cksum = (((cksum >>> 1) | (cksum << 15)) + (0xFF & data[i + 1])) & 0xFFFF;
+        cksum = (((cksum >>> 1) | (cksum << 15)) + (0xFF & data[i + 2])) & 0xFFFF;
+        cksum = (((cksum >>> 1) | (cksum << 15)) + (0xFF & data[i + 3])) & 0xFFFF;
+      }
+      for (; i < end; i++) {
+        cksum = (((cksum >>> 1) | (cksum << 15)) + (0xFF & data[i])) & 0xFFFF;
       }
       return cksum;
     }
 
-    private static int cksum_cib(byte[] puzByteArray, int cksum) {
-      return cksum_region(puzByteArray, 0x2C, 8, cksum);
-    }
-
-    private static int cksum_primary_board(byte[] puzByteArray, int numberOfBoxes,
-        int numberOfClues, int cksum) {
-      cksum = cksum_solution(puzByteArray, numberOfBoxes, cksum);
-      cksum = cksum_grid(puzByteArray, numberOfBoxes, cksum);
-      cksum = cksum_partial_board(puzByteArray, numberOfBoxes, numberOfClues, cksum);
-      return cksum;
-    }
-
-    private static int cksum_solution(byte[] puzByteArray, int numberOfBoxes, int cksum) {
-      return cksum_region(puzByteArray, 0x34, numberOfBoxes, cksum);
-    }
-
-    private static int cksum_grid(byte[] puzByteArray, int numberOfBoxes, int cksum) {
-      return cksum_region(puzByteArray, 0x34 + numberOfBoxes, numberOfBoxes, cksum);
-    }
-
-    private static int cksum_partial_board(byte[] puzByteArray, int numberOfBoxes,
-        int numberOfClues, int cksum) {
-      int offset = 0x34 + 2*numberOfBoxes;
-      for(int i = 0; i < 4 + numberOfClues; i++) {
-          int startOffset = offset;
-          while(puzByteArray[offset] != 0) {
-            offset++;
-          }
-          int length = offset - startOffset;
-          if (i > 2 && i < 3 + numberOfClues) {
-            cksum = cksum_region(puzByteArray, startOffset, length, cksum);
-          }
-          else if (length > 0) {
-            cksum = cksum_region(puzByteArray, startOffset, length+1, cksum);
-          }
-          offset++;
-        }
-      return cksum;
+    private static int cksum_step(int cksum, byte b) {
+      return (((cksum >>> 1) | (cksum << 15)) + (0xFF & b)) & 0xFFFF;
     }
 }
@@ -0,0 +1,119 @@
+package com.totsp.crossword.io;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Date;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+
+import com.totsp.crossword.puz.Puzzle;
+
+/**
+ * Reusable JPZ to .puz converter.  The SAXParserFactory is looked up once per
+ * converter and each thread keeps its own SAXParser, which is reset after
+ * every document, so bulk conversion doesn't pay the parser setup cost for
+ * each puzzle.  A single instance may be shared between threads.
+ */
+public class JPZConverter {
+    /**
+     * Version of the conversion.  Bump it whenever a change means the same
+     * JPZ document converts to different .puz bytes, so ConversionCache
+     * doesn't serve puzzles converted the old way.
+     */
+    public static final int VERSION = 1;
+
+    private final SAXParserFactory factory;
+    private final ThreadLocal<SAXParser> parsers = new ThreadLocal<SAXParser>();
+
+    public JPZConverter() {
+        this(SAXParserFactory.newInstance());
+    }
+
+    public JPZConverter(SAXParserFactory factory) {
+        this.factory = factory;
+    }
+
+    /**
+     * Parses a cleaned-up JPZ document (see JPZIO.openJPZStream) into a Puzzle.
+     */
+    public Puzzle parse(InputStream is, Date d)
+            throws IOException, SAXException, ParserConfigurationException {
+        Puzzle puz = new Puzzle();
+        puz.setDate(d);
+
+        SAXParser parser = getParser();
+        try {
+            XMLReader xr = parser.getXMLReader();
+            JPZIO.JPZXMLParser handler = new JPZIO.JPZXMLParser(puz);
+            xr.setContentHandler(handler);
+            // Report fatal errors by throwing only; the default handler also prints them.
+            xr.setErrorHandler(handler);
+            xr.parse(new InputSource(is));
+        } finally {
+            // Drop the handlers and input source so the next document starts clean.
+            parser.reset();
+        }
+
+        puz.setVersion(IO.VERSION_STRING);
+        return puz;
+    }
+
+    /**
+     * Parses a cleaned-up JPZ document and writes it to os in .puz format.
+     */
+    public void convert(InputStream is, DataOutputStream os, Date d)
+            throws IOException, SAXException, ParserConfigurationException {
+        IO.saveNative(parse(is, d), os);
+    }
+
+    /**
+     * Converts a JPZ document held in memory, zipped or not.  Nothing is
+     * read from or written to disk and nothing is logged; a document that
+     * can't be converted is reported through the result rather than thrown.
+     */
+    public ConversionResult convert(byte[] jpz) {
+        return convert(new ByteArrayInputStream(jpz));
+    }
+
+    /**
+     * Converts the JPZ document in the remaining bytes of jpz, zipped or not,
+     * as convert(byte[]) does.  The buffer's position is left unchanged.
+     */
+    public ConversionResult convert(ByteBuffer jpz) {
+        if (jpz.hasArray()) {
+            return convert(new ByteArrayInputStream(jpz.array(),
+                    jpz.arrayOffset() + jpz.position(), jpz.remaining()));
+        }
+        return convert(new ByteBufferInputStream(jpz.duplicate()));
+    }
+
+    private ConversionResult convert(InputStream is) {
+        try {
+            Puzzle puz = parse(JPZIO.openJPZStream(is), new Date());
+            return new ConversionResult(IO.toNativeBytes(puz), puz, null);
+        } catch (Exception e) {
+            return new ConversionResult(null, null, e);
+        }
+    }
+
+    private SAXParser getParser() throws ParserConfigurationException, SAXException {
+        SAXParser parser = parsers.get();
+        if (parser == null) {
+            // Factories aren't required to be thread safe.
+            synchronized (factory) {
+                parser = factory.newSAXParser();
+            }
+            parsers.set(parser);
+        }
+        return parser;
+    }
+}
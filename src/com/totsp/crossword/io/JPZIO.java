@@ -1,23 +1,20 @@
 package com.totsp.crossword.io;
 
+import java.io.BufferedInputStream;
 import java.io.DataOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
-import java.io.UnsupportedEncodingException;
-import java.net.URLDecoder;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Map;
-
-import javax.xml.parsers.SAXParser;
-import javax.xml.parsers.SAXParserFactory;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
 
 import org.xml.sax.Attributes;
-import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
-import org.xml.sax.XMLReader;
 import org.xml.sax.helpers.DefaultHandler;
 
-import com.totsp.crossword.puz.Box;
+import com.totsp.crossword.puz.Grid;
 import com.totsp.crossword.puz.Puzzle;
 
 /**
@@ -59,9 +56,9 @@ import com.totsp.crossword.puz.Puzzle;
  * </crossword-compiler-applet>
  */
 public class JPZIO {
-    private static String CHARSET_NAME = "utf8";
+    private static final JPZConverter CONVERTER = new JPZConverter();
 
-    private static class JPZXMLParser extends DefaultHandler {
+    static class JPZXMLParser extends DefaultHandler {
         private Puzzle puz;
         private Map<Integer, String> acrossNumToClueMap = new HashMap<Integer, String>();
         private Map<Integer, String> downNumToClueMap = new HashMap<Integer, String>();
@@ -79,7 +76,7 @@ public class JPZIO {
         private boolean inCopyright = false;
         private boolean inDescription = false;
 
-        private Box[][] boxes;
+        private Grid grid;
         private int width;
         private int height;
 
@@ -94,61 +91,76 @@ public class JPZIO {
         @Override
         public void startElement(String nsURI, String strippedName,
                 String tagName, Attributes attributes) throws SAXException {
-            strippedName = strippedName.trim();
-            String name = strippedName.length() == 0 ? tagName.trim() : strippedName;
+            int element = Elements.lookup(strippedName.length() == 0 ? tagName : strippedName);
 
-            if (name.equalsIgnoreCase("metadata")) {
+            if (element == Elements.METADATA) {
                 inMetadata = true;
             } else if (inMetadata) {
-                if (name.equalsIgnoreCase("title")) {
+                switch (element) {
+                case Elements.TITLE:
                     inTitle = true;
                     curBuffer = new StringBuilder();
-                } else if (name.equalsIgnoreCase("creator")) {
+                    break;
+                case Elements.CREATOR:
                     inAuthor = true;
                     curBuffer = new StringBuilder();
-                } else if (name.equalsIgnoreCase("copyright")) {
+                    break;
+                case Elements.COPYRIGHT:
                     inCopyright = true;
                     curBuffer = new StringBuilder();
-                } else if (name.equalsIgnoreCase("description")) {
+                    break;
+                case Elements.DESCRIPTION:
                     inDescription = true;
                     curBuffer = new StringBuilder();
+                    break;
                 }
-            } else if (name.equalsIgnoreCase("grid")) {
-                width = Integer.parseInt(attributes.getValue("width"));
-                height = Integer.parseInt(attributes.getValue("height"));
-                puz.setWidth(width);
-                puz.setHeight(height);
-                boxes = new Box[height][width];
-                clueNums = new int[height][width];
-            } else if (name.equalsIgnoreCase("cell")) {
-                int x = Integer.parseInt(attributes.getValue("x")) - 1;
-                int y = Integer.parseInt(attributes.getValue("y")) - 1;
-                String sol = attributes.getValue("solution");
-                if (sol != null) {
-                    boxes[y][x] = new Box();
-                    boxes[y][x].setSolution(sol.charAt(0));
-                    if ("circle".equalsIgnoreCase(attributes.getValue("background-shape"))) {
-                        puz.setGEXT(true);
-                        boxes[y][x].setCircled(true);
+            } else {
+                switch (element) {
+                case Elements.GRID:
+                    width = Integer.parseInt(attributes.getValue("width"));
+                    height = Integer.parseInt(attributes.getValue("height"));
+                    puz.setWidth(width);
+                    puz.setHeight(height);
+                    grid = new Grid(width, height);
+                    clueNums = new int[height][width];
+                    break;
+                case Elements.CELL:
+                    int x = Integer.parseInt(attributes.getValue("x")) - 1;
+                    int y = Integer.parseInt(attributes.getValue("y")) - 1;
+                    String sol = attributes.getValue("solution");
+                    if (sol != null) {
+                        int cell = (y * width) + x;
+                        grid.setBlock(cell, false);
+                        grid.setSolution(cell, sol.charAt(0));
+                        if ("circle".equalsIgnoreCase(attributes.getValue("background-shape"))) {
+                            puz.setGEXT(true);
+                            grid.setCircled(cell, true);
+                        }
+                        String number = attributes.getValue("number");
+                        if (number != null) {
+                            clueNums[y][x] = Integer.parseInt(number);
+                        }
                     }
-                    String number = attributes.getValue("number");
-                    if (number != null) {
-                        clueNums[y][x] = Integer.parseInt(number);
+                    break;
+                case Elements.CLUES:
+                    inClues = true;
+                    break;
+                case Elements.TITLE:
+                    if (inClues) {
+                        inClueTitle = true;
+                        curBuffer = new StringBuilder();
                     }
-                }
-            } else if (name.equalsIgnoreCase("clues")) {
-                inClues = true;
-            } else if (inClues) {
-                if (name.equalsIgnoreCase("title")) {
-                    inClueTitle = true;
-                    curBuffer = new StringBuilder();
-                } else if (name.equalsIgnoreCase("clue")) {
-                    inClue = true;
-                    clueNumber = Integer.parseInt(attributes.getValue("number"));
-                    if (clueNumber > maxClueNum) {
-                        maxClueNum = clueNumber;
+                    break;
+                case Elements.CLUE:
+                    if (inClues) {
+                        inClue = true;
+                        clueNumber = Integer.parseInt(attributes.getValue("number"));
+                        if (clueNumber > maxClueNum) {
+                            maxClueNum = clueNumber;
+                        }
+                        curBuffer = new StringBuilder();
                     }
-                    curBuffer = new StringBuilder();
+                    break;
                 }
             }
         }
@@ -163,88 +175,108 @@ public class JPZIO {
         @Override
         public void endElement(String nsURI, String strippedName,
                 String tagName) throws SAXException {
-            strippedName = strippedName.trim();
-            String name = strippedName.length() == 0 ? tagName.trim() : strippedName;
+            int element = Elements.lookup(strippedName.length() == 0 ? tagName : strippedName);
 
-            if (name.equalsIgnoreCase("metadata")) {
+            if (element == Elements.METADATA) {
                 inMetadata = false;
             } else if (inMetadata) {
-                if (name.equalsIgnoreCase("title")) {
+                switch (element) {
+                case Elements.TITLE:
                     puz.setTitle(curBuffer.toString());
                     inTitle = false;
                     curBuffer = null;
-                } else if (name.equalsIgnoreCase("creator")) {
+                    break;
+                case Elements.CREATOR:
                     puz.setAuthor(curBuffer.toString());
                     inAuthor = false;
                     curBuffer = null;
-                } else if (name.equalsIgnoreCase("copyright")) {
+                    break;
+                case Elements.COPYRIGHT:
                     puz.setCopyright(curBuffer.toString());
                     inCopyright = false;
                     curBuffer = null;
-                } else if (name.equalsIgnoreCase("description")) {
+                    break;
+                case Elements.DESCRIPTION:
                     puz.setNotes(curBuffer.toString());
                     inDescription = false;
                     curBuffer = null;
+                    break;
                 }
-            } else if (name.equalsIgnoreCase("grid")) {
-                puz.setBoxes(boxes);
-            } else if (name.equalsIgnoreCase("clues")) {
-                inClues = false;
-                inAcross = false;
-                inDown = false;
-            } else if (inClues) {
-                if (name.equalsIgnoreCase("title")) {
-                    String title = curBuffer.toString();
-                    if (title.contains("Across")) {
-                        inAcross = true;
-                    } else if (title.contains("Down")) {
-                        inDown = true;
-                    } else {
-                        throw new SAXException("Clue list is neither across nor down.");
+            } else {
+                switch (element) {
+                case Elements.GRID:
+                    puz.setGrid(grid);
+                    break;
+                case Elements.CLUES:
+                    inClues = false;
+                    inAcross = false;
+                    inDown = false;
+                    break;
+                case Elements.TITLE:
+                    if (inClues) {
+                        endClueTitle();
                     }
-                    inClueTitle = false;
-                    curBuffer = null;
-                } else if (name.equalsIgnoreCase("clue")) {
-                    if (inAcross) {
-                        try {
-                            acrossNumToClueMap.put(clueNumber, URLDecoder.decode(curBuffer.toString(), "utf8"));
-                        } catch (UnsupportedEncodingException e) {
-                            acrossNumToClueMap.put(clueNumber, curBuffer.toString());
-                        }
-                    } else if (inDown) {
-                        try {
-                            downNumToClueMap.put(clueNumber, URLDecoder.decode(curBuffer.toString(), "utf8"));
-                        } catch (UnsupportedEncodingException e) {
-                            downNumToClueMap.put(clueNumber, curBuffer.toString());
-                        }
-                    } else {
-                        throw new SAXException("Unexpected end of clue tag.");
+                    break;
+                case Elements.CLUE:
+                    if (inClues) {
+                        endClue();
                     }
-                }
-            } else if (name.equalsIgnoreCase("crossword")) {
-                int numberOfClues = acrossNumToClueMap.size() + downNumToClueMap.size();
-                puz.setNumberOfClues(numberOfClues);
-                String[] rawClues = new String[numberOfClues];
-                int i = 0;
-                for(int clueNum = 1; clueNum <= maxClueNum; clueNum++) {
-                    if(acrossNumToClueMap.containsKey(clueNum)) {
-                        rawClues[i] = acrossNumToClueMap.get(clueNum);
-                        i++;
-                    }
-                    if(downNumToClueMap.containsKey(clueNum)) {
-                        rawClues[i] = downNumToClueMap.get(clueNum);
-                        i++;
+                    break;
+                case Elements.CROSSWORD:
+                    if (!inClues) {
+                        endCrossword();
                     }
+                    break;
                 }
-                puz.setRawClues(rawClues);
-
-                // verify clue numbers
-                for (int y = 0; y < height; y++) {
-                    for (int x = 0; x < width; x++) {
-                        if (clueNums[y][x] != 0) {
-                            if (puz.getBoxes()[y][x].getClueNumber() != clueNums[y][x]) {
-                                throw new SAXException("Irregular numbering scheme.");
-                            }
+            }
+        }
+
+        private void endClueTitle() throws SAXException {
+            String title = curBuffer.toString();
+            if (title.contains("Across")) {
+                inAcross = true;
+            } else if (title.contains("Down")) {
+                inDown = true;
+            } else {
+                throw new SAXException("Clue list is neither across nor down.");
+            }
+            inClueTitle = false;
+            curBuffer = null;
+        }
+
+        private void endClue() throws SAXException {
+            if (inAcross) {
+                acrossNumToClueMap.put(clueNumber, Entities.decode(curBuffer));
+            } else if (inDown) {
+                downNumToClueMap.put(clueNumber, Entities.decode(curBuffer));
+            } else {
+                throw new SAXException("Unexpected end of clue tag.");
+            }
+        }
+
+        private void endCrossword() throws SAXException {
+            int numberOfClues = acrossNumToClueMap.size() + downNumToClueMap.size();
+            puz.setNumberOfClues(numberOfClues);
+            String[] rawClues = new String[numberOfClues];
+            int i = 0;
+            for(int clueNum = 1; clueNum <= maxClueNum; clueNum++) {
+                if(acrossNumToClueMap.containsKey(clueNum)) {
+                    rawClues[i] = acrossNumToClueMap.get(clueNum);
+                    i++;
+                }
+                if(downNumToClueMap.containsKey(clueNum)) {
+                    rawClues[i] = downNumToClueMap.get(clueNum);
+                    i++;
+                }
+            }
+            puz.setRawClues(rawClues);
+
+            // verify clue numbers
+            for (int y = 0; y < height; y++) {
+                for (int x = 0; x < width; x++) {
+                    if (clueNums[y][x] != 0) {
+                        if (grid.getClueNumber((y * width) + x) != clueNums[y][x]) {
+                            throw new SAXException("Irregular numbering scheme.");
                         }
                     }
                 }
@@ -252,21 +284,255 @@ public class JPZIO {
         }
     }
 
+    /**
+     * Element names understood by JPZXMLParser, mapped to int tokens through a
+     * perfect hash on the name's length and its first and last characters.
+     * Names are hashed and compared without regard to case and without
+     * allocating, so each SAX callback dispatches with one table probe and at
+     * most one comparison.
+     */
+    static final class Elements {
+        static final int UNKNOWN = 0;
+        static final int METADATA = 1;
+        static final int TITLE = 2;
+        static final int CREATOR = 3;
+        static final int COPYRIGHT = 4;
+        static final int DESCRIPTION = 5;
+        static final int GRID = 6;
+        static final int CELL = 7;
+        static final int CLUES = 8;
+        static final int CLUE = 9;
+        static final int CROSSWORD = 10;
+
+        private static final int MASK = 31;
+        private static final String[] NAMES = new String[MASK + 1];
+        private static final int[] TOKENS = new int[MASK + 1];
+
+        static {
+            add("metadata", METADATA);
+            add("title", TITLE);
+            add("creator", CREATOR);
+            add("copyright", COPYRIGHT);
+            add("description", DESCRIPTION);
+            add("grid", GRID);
+            add("cell", CELL);
+            add("clues", CLUES);
+            add("clue", CLUE);
+            add("crossword", CROSSWORD);
+        }
+
+        private Elements() {
+        }
+
+        private static void add(String name, int token) {
+            int slot = hash(name);
+            if (NAMES[slot] != null) {
+                throw new IllegalStateException("Element hash collision: " + name + ", " + NAMES[slot]);
+            }
+            NAMES[slot] = name;
+            TOKENS[slot] = token;
+        }
+
+        private static int hash(String name) {
+            // OR-ing in 0x20 folds ASCII upper case onto lower case.
+            int length = name.length();
+            return (length + (name.charAt(0) | 0x20) + (name.charAt(length - 1) | 0x20)) & MASK;
+        }
+
+        static int lookup(String name) {
+            if (name.length() == 0) {
+                return UNKNOWN;
+            }
+            int slot = hash(name);
+            String candidate = NAMES[slot];
+            if (candidate != null && candidate.length() == name.length()
+                    && candidate.regionMatches(true, 0, name, 0, name.length())) {
+                return TOKENS[slot];
+            }
+            return UNKNOWN;
+        }
+    }
+
+    /**
+     * Decodes the HTML entities left in clue text once the XML parser has
+     * resolved its own, e.g. "&amp;eacute;" in the document arrives as
+     * "&eacute;".  Numeric references, the HTML 4 Latin-1 names and a few
+     * punctuation names are decoded; anything else is kept as written.
+     * &nbsp; becomes a plain space and curly double quotes a '"', as they do
+     * before parsing.  References to NUL, other control characters or
+     * surrogates are kept as written too, since a .puz string can't hold them.
+     */
+    static final class Entities {
+        private static final Map<String, Character> NAMED = new HashMap<String, Character>();
+
+        // The HTML 4 names for U+00A1 to U+00FF, in order.
+        private static final String[] LATIN1 = {
+            "iexcl", "cent", "pound", "curren", "yen", "brvbar", "sect", "uml",
+            "copy", "ordf", "laquo", "not", "shy", "reg", "macr", "deg",
+            "plusmn", "sup2", "sup3", "acute", "micro", "para", "middot", "cedil",
+            "sup1", "ordm", "raquo", "frac14", "frac12", "frac34", "iquest", "Agrave",
+            "Aacute", "Acirc", "Atilde", "Auml", "Aring", "AElig", "Ccedil", "Egrave",
+            "Eacute", "Ecirc", "Euml", "Igrave", "Iacute", "Icirc", "Iuml", "ETH",
+            "Ntilde", "Ograve", "Oacute", "Ocirc", "Otilde", "Ouml", "times", "Oslash",
+            "Ugrave", "Uacute", "Ucirc", "Uuml", "Yacute", "THORN", "szlig", "agrave",
+            "aacute", "acirc", "atilde", "auml", "aring", "aelig", "ccedil", "egrave",
+            "eacute", "ecirc", "euml", "igrave", "iacute", "icirc", "iuml", "eth",
+            "ntilde", "ograve", "oacute", "ocirc", "otilde", "ouml", "divide", "oslash",
+            "ugrave", "uacute", "ucirc", "uuml", "yacute", "thorn", "yuml"
+        };
+
+        static {
+            for (int i = 0; i < LATIN1.length; i++) {
+                NAMED.put(LATIN1[i], (char) (0xA1 + i));
+            }
+            NAMED.put("amp", '&');
+            NAMED.put("lt", '<');
+            NAMED.put("gt", '>');
+            NAMED.put("quot", '"');
+            NAMED.put("apos", '\'');
+            NAMED.put("nbsp", ' ');
+            NAMED.put("ndash", '\u2013');
+            NAMED.put("mdash", '\u2014');
+            NAMED.put("lsquo", '\u2018');
+            NAMED.put("rsquo", '\u2019');
+            NAMED.put("ldquo", '"');
+            NAMED.put("rdquo", '"');
+            NAMED.put("hellip", '\u2026');
+        }
+
+        // Longer than any name in the table or any valid numeric reference.
+        private static final int MAX_ENTITY = 10;
+
+        private Entities() {
+        }
+
+        static String decode(StringBuilder text) {
+            int amp = text.indexOf("&");
+            if (amp < 0) {
+                return text.toString();
+            }
+
+            StringBuilder sb = new StringBuilder(text.length());
+            int copied = 0;
+            while (amp >= 0) {
+                int semi = -1;
+                int limit = Math.min(text.length(), amp + MAX_ENTITY + 2);
+                for (int i = amp + 1; i < limit; i++) {
+                    char c = text.charAt(i);
+                    if (c == ';') {
+                        semi = i;
+                        break;
+                    } else if (c == '&') {
+                        break;
+                    }
+                }
+                int decoded = (semi < 0) ? -1 : entity(text, amp + 1, semi);
+                if (decoded >= 0) {
+                    sb.append(text, copied, amp);
+                    sb.appendCodePoint(decoded);
+                    copied = semi + 1;
+                }
+                amp = text.indexOf("&", (decoded >= 0) ? copied : amp + 1);
+            }
+            sb.append(text, copied, text.length());
+            return sb.toString();
+        }
+
+        /**
+         * Returns the code point named by text[start, end), or -1 if it isn't
+         * an entity this decoder knows.
+         */
+        private static int entity(StringBuilder text, int start, int end) {
+            if (start >= end) {
+                return -1;
+            }
+            if (text.charAt(start) != '#') {
+                Character c = NAMED.get(text.substring(start, end));
+                return (c == null) ? -1 : c.charValue();
+            }
+
+            int radix = 10;
+            int i = start + 1;
+            if (i < end && (text.charAt(i) == 'x' || text.charAt(i) == 'X')) {
+                radix = 16;
+                i++;
+            }
+            if (i == end) {
+                return -1;
+            }
+            int value = 0;
+            for (; i < end; i++) {
+                int digit = Character.digit(text.charAt(i), radix);
+                if (digit < 0) {
+                    return -1;
+                }
+                value = (value * radix) + digit;
+                if (value > Character.MAX_CODE_POINT) {
+                    return -1;
+                }
+            }
+            if (value < 0x20 || (value >= Character.MIN_SURROGATE && value <= Character.MAX_SURROGATE)) {
+                return -1;
+            }
+            if (value == 0x201C || value == 0x201D) {
+                return '"';
+            }
+            return (value == 0xA0) ? ' ' : value;
+        }
+    }
+
+    /**
+     * Opens a raw .jpz stream for parsing.  If the stream is a zip archive,
+     * the first file entry is inflated on the fly; otherwise the bytes are
+     * read as-is.  Either way the result passes through the character
+     * substitution and charset stages in memory, ready to hand to
+     * convertJPZPuzzle.
+     */
+    public static InputStream openJPZStream(InputStream is) throws IOException {
+        BufferedInputStream bis = new BufferedInputStream(is);
+        if (isZip(bis)) {
+            ZipInputStream zis = new ZipInputStream(bis);
+            ZipEntry entry;
+            do {
+                entry = zis.getNextEntry();
+            } while (entry != null && entry.isDirectory());
+            if (entry == null) {
+                zis.close();
+                throw new IOException("Empty .jpz archive.");
+            }
+            return filterJPZStream(zis);
+        }
+        return filterJPZStream(bis);
+    }
+
+    /**
+     * Wraps an uncompressed JPZ document in the pass that replaces invalid
+     * characters with safe equivalents and fixes up the charset.
+     */
+    public static InputStream filterJPZStream(InputStream is) {
+        return new JPZTranscodingInputStream(is);
+    }
+
+    /**
+     * Checks whether a stream starts with a zip local file header, without
+     * consuming anything.
+     */
+    public static boolean isZip(BufferedInputStream bis) throws IOException {
+        bis.mark(4);
+        byte[] magic = new byte[4];
+        int count = 0;
+        int n;
+        while (count < magic.length && (n = bis.read(magic, count, magic.length - count)) != -1) {
+            count += n;
+        }
+        bis.reset();
+        return count == 4 && magic[0] == 'P' && magic[1] == 'K' && magic[2] == 3 && magic[3] == 4;
+    }
+
     public static boolean convertJPZPuzzle(InputStream is, DataOutputStream os,
             Date d) {
-        Puzzle puz = new Puzzle();
-        puz.setDate(d);
-        SAXParserFactory factory = SAXParserFactory.newInstance();
         try {
-            SAXParser parser = factory.newSAXParser();
-            //parser.setProperty("http://xml.org/sax/features/validation", false);
-            XMLReader xr = parser.getXMLReader();
-            xr.setContentHandler(new JPZXMLParser(puz));
-            xr.parse(new InputSource(is));
-
-            puz.setVersion(IO.VERSION_STRING);
-
-            IO.saveNative(puz, os);
+            CONVERTER.convert(is, os, d);
             return true;
         } catch (Exception e) {
             e.printStackTrace();
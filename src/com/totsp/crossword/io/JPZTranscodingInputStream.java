@@ -0,0 +1,251 @@
+package com.totsp.crossword.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Cleans up a raw JPZ document for the XML parser in a single pass over its
+ * bytes.  It does the work of the two passes Convert used to make:
+ *
+ * 1. Replace characters the XML parser can't handle: "&nbsp;", which XML
+ *    doesn't define, becomes a space, and curly double quotes (U+201C and
+ *    U+201D) become '"'.  Every line ends in a single '\n', whether it ended
+ *    in "\r\n", '\r', '\n', U+0085, U+2028, U+2029 or the end of the
+ *    document; these are the separators Scanner.nextLine() split on.
+ * 2. Fix the charset: each byte of the result at or above 0x80 is read as an
+ *    ISO-8859-1 character and written back as UTF-8.  The old pass read
+ *    these lines with Scanner too, so a 0x85 byte, which is U+0085 in
+ *    ISO-8859-1, became a line break; it still does.  It can only appear as
+ *    a continuation byte, e.g. the second byte of '\u00C5' (C3 85).
+ *
+ * The input is UTF-8.  Malformed sequences become U+FFFD, replaced the way
+ * the JDK's decoder replaces them, since the old line-based pass read the
+ * document through one.  Everything is driven by a small state machine: the
+ * UTF-8 sequence in progress, how much of "&nbsp;" has been matched, and
+ * whether a '\n' should be swallowed after a '\r'.  Output goes into a buffer
+ * that is reused for every chunk of input.
+ */
+class JPZTranscodingInputStream extends InputStream {
+    private static final byte[] NBSP = { '&', 'n', 'b', 's', 'p', ';' };
+    private static final int CHUNK = 4096;
+
+    private final InputStream in;
+    private final byte[] raw = new byte[CHUNK];
+    // A byte expands to at most six (U+FFFD, charset fixed), plus a held "&nbsp" prefix.
+    private final byte[] out = new byte[(CHUNK * 6) + 16];
+    private int outPos = 0;
+    private int outEnd = 0;
+    private boolean eof = false;
+
+    private final int[] sequence = new int[4];
+    private int sequenceLength = 0;
+    private int sequenceNeeded = 0;
+    private int nbspMatched = 0;
+    private boolean skipLF = false;
+    private boolean lineOpen = false;
+
+    public JPZTranscodingInputStream(InputStream is) {
+        this.in = is;
+    }
+
+    private boolean fill() throws IOException {
+        while (outPos >= outEnd) {
+            if (eof) {
+                return false;
+            }
+            outPos = 0;
+            outEnd = 0;
+            int n = in.read(raw, 0, CHUNK);
+            if (n < 0) {
+                finish();
+                eof = true;
+            } else {
+                for (int i = 0; i < n; i++) {
+                    accept(raw[i] & 0xFF);
+                }
+            }
+        }
+        return true;
+    }
+
+    private void accept(int b) {
+        if (sequenceLength > 0) {
+            continueSequence(b);
+        } else if (b < 0x80) {
+            ascii(b);
+        } else {
+            startCharacter();
+            if (b >= 0xC2 && b <= 0xDF) {
+                startSequence(b, 2);
+            } else if (b >= 0xE0 && b <= 0xEF) {
+                startSequence(b, 3);
+            } else if (b >= 0xF0 && b <= 0xF4) {
+                startSequence(b, 4);
+            } else {
+                replacement();
+            }
+        }
+    }
+
+    private void ascii(int b) {
+        if (nbspMatched > 0) {
+            if (b == NBSP[nbspMatched]) {
+                if (++nbspMatched == NBSP.length) {
+                    nbspMatched = 0;
+                    out[outEnd++] = ' ';
+                }
+                return;
+            }
+            flushNbsp();
+        }
+
+        if (b == '\n') {
+            if (skipLF) {
+                skipLF = false;
+            } else {
+                endLine();
+            }
+            return;
+        }
+        skipLF = false;
+        if (b == '\r') {
+            endLine();
+            skipLF = true;
+            return;
+        }
+
+        lineOpen = true;
+        if (b == '&') {
+            nbspMatched = 1;
+        } else {
+            out[outEnd++] = (byte) b;
+        }
+    }
+
+    private void startCharacter() {
+        if (nbspMatched > 0) {
+            flushNbsp();
+        }
+        skipLF = false;
+        lineOpen = true;
+    }
+
+    private void startSequence(int b, int length) {
+        sequence[0] = b;
+        sequenceLength = 1;
+        sequenceNeeded = length;
+    }
+
+    private void continueSequence(int b) {
+        int lead = sequence[0];
+        boolean malformed = (b & 0xC0) != 0x80;
+        if (sequenceLength == 1) {
+            // Overlong forms and code points above U+10FFFF are caught on the second byte.
+            malformed |= (lead == 0xE0 && b < 0xA0) || (lead == 0xF0 && b < 0x90)
+                || (lead == 0xF4 && b > 0x8F);
+        }
+        if (malformed) {
+            sequenceLength = 0;
+            replacement();
+            accept(b);
+            return;
+        }
+
+        sequence[sequenceLength++] = b;
+        if (sequenceLength < sequenceNeeded) {
+            return;
+        }
+        sequenceLength = 0;
+        if (sequenceNeeded == 3 && lead == 0xED && sequence[1] >= 0xA0) {
+            // An encoded surrogate is replaced whole.
+            replacement();
+        } else if (sequenceNeeded == 3 && lead == 0xE2 && sequence[1] == 0x80
+                && (b == 0x9C || b == 0x9D)) {
+            out[outEnd++] = '"';
+        } else if ((sequenceNeeded == 2 && lead == 0xC2 && b == 0x85)
+                || (sequenceNeeded == 3 && lead == 0xE2 && sequence[1] == 0x80
+                        && (b == 0xA8 || b == 0xA9))) {
+            // U+0085, U+2028 and U+2029 end a line.
+            endLine();
+        } else {
+            for (int i = 0; i < sequenceNeeded; i++) {
+                latin1(sequence[i]);
+            }
+        }
+    }
+
+    private void replacement() {
+        // U+FFFD is EF BF BD in UTF-8.
+        latin1(0xEF);
+        latin1(0xBF);
+        latin1(0xBD);
+    }
+
+    private void latin1(int b) {
+        if (b == 0x85) {
+            // Read as U+0085 by the second pass, which ended the line there.
+            out[outEnd++] = '\n';
+            return;
+        }
+        out[outEnd++] = (byte) (0xC0 | (b >> 6));
+        out[outEnd++] = (byte) (0x80 | (b & 0x3F));
+    }
+
+    private void flushNbsp() {
+        for (int i = 0; i < nbspMatched; i++) {
+            out[outEnd++] = NBSP[i];
+        }
+        nbspMatched = 0;
+    }
+
+    private void endLine() {
+        out[outEnd++] = '\n';
+        lineOpen = false;
+    }
+
+    private void finish() {
+        if (sequenceLength > 0) {
+            // A truncated sequence at the end is replaced whole.
+            sequenceLength = 0;
+            replacement();
+        }
+        if (nbspMatched > 0) {
+            flushNbsp();
+        }
+        if (lineOpen) {
+            endLine();
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!fill()) {
+            return -1;
+        }
+        return out[outPos++] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (!fill()) {
+            return -1;
+        }
+        int count = Math.min(len, outEnd - outPos);
+        System.arraycopy(out, outPos, b, off, count);
+        outPos += count;
+        return count;
+    }
+
+    @Override
+    public int available() {
+        return outEnd - outPos;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+}
@@ -0,0 +1,200 @@
+package com.totsp.crossword.io;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+import com.totsp.crossword.puz.Puzzle;
+
+/**
+ * Lazy, read-only view of a .puz file, for callers that only need a few
+ * fields.  Header fields are answered straight from their fixed offsets in
+ * the (usually memory-mapped) buffer; strings are located and decoded only
+ * when asked for, and only as far into the string section as needed, so
+ * reading the title of a puzzle never touches its clues.  Use toPuzzle()
+ * to load the whole thing.
+ *
+ * Not thread-safe: string offsets are filled in as strings are read, so an
+ * instance must not be used by more than one thread at a time.  Open one per
+ * thread instead; mappings of the same file share their pages.
+ */
+public class MappedPuzzle {
+    private final ByteBuffer bb;
+    private final int width;
+    private final int height;
+    private final int numberOfClues;
+
+    // Start offsets of the strings located so far: title, author, copyright,
+    // clues, notes.  The title always starts right after the grids.  Not
+    // guarded; see the class comment.
+    private final int[] stringOffsets;
+    private int stringsLocated = 1;
+
+    public MappedPuzzle(ByteBuffer buffer) throws IOException {
+        this.bb = buffer.slice();
+        this.bb.order(ByteOrder.LITTLE_ENDIAN);
+        if (bb.limit() < 0x34) {
+            throw new EOFException("Truncated .puz header.");
+        }
+        for (int i = 0; i < IO.FILE_MAGIC.length(); i++) {
+            if (bb.get(0x02 + i) != IO.FILE_MAGIC.charAt(i)) {
+                throw new IOException("Not a .puz file.");
+            }
+        }
+        width = 0xFF & bb.get(0x2C);
+        height = 0xFF & bb.get(0x2D);
+        numberOfClues = 0xFFFF & bb.getShort(0x2E);
+        stringOffsets = new int[numberOfClues + 4];
+        stringOffsets[0] = 0x34 + 2 * width * height;
+    }
+
+    /**
+     * Maps a .puz file read-only.  The mapping stays valid after this returns;
+     * it is released when the MappedPuzzle is garbage collected.
+     */
+    public static MappedPuzzle open(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            return new MappedPuzzle(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        } finally {
+            raf.close();
+        }
+    }
+
+    public short getFileChecksum() {
+        return bb.getShort(0x00);
+    }
+
+    public short getCIBChecksum() {
+        return bb.getShort(0x0E);
+    }
+
+    /**
+     * Returns the eight masked checksum bytes at 0x10.
+     */
+    public byte[] getMaskedChecksums() {
+        byte[] masked = new byte[8];
+        for (int i = 0; i < masked.length; i++) {
+            masked[i] = bb.get(0x10 + i);
+        }
+        return masked;
+    }
+
+    public String getVersion() {
+        byte[] version = new byte[3];
+        for (int i = 0; i < version.length; i++) {
+            version[i] = bb.get(0x18 + i);
+        }
+        return new String(version, IO.CHARSET);
+    }
+
+    public short getSolutionChecksum() {
+        return bb.getShort(0x1E);
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getNumberOfClues() {
+        return numberOfClues;
+    }
+
+    public boolean isScrambled() {
+        return bb.getShort(0x32) != 0;
+    }
+
+    /**
+     * Returns a copy of the solution grid, one byte per cell row by row, with
+     * '.' for black squares.
+     */
+    public byte[] getSolution() throws IOException {
+        return copy(0x34, width * height);
+    }
+
+    /**
+     * Returns a copy of the player's grid, with '-' for empty cells.
+     */
+    public byte[] getResponses() throws IOException {
+        return copy(0x34 + width * height, width * height);
+    }
+
+    public String getTitle() throws IOException {
+        return getString(0);
+    }
+
+    public String getAuthor() throws IOException {
+        return getString(1);
+    }
+
+    public String getCopyright() throws IOException {
+        return getString(2);
+    }
+
+    /**
+     * Returns a clue in file order: by number, across before down.
+     */
+    public String getClue(int index) throws IOException {
+        if (index < 0 || index >= numberOfClues) {
+            throw new IndexOutOfBoundsException("Clue " + index + " of " + numberOfClues);
+        }
+        return getString(3 + index);
+    }
+
+    public String getNotes() throws IOException {
+        return getString(3 + numberOfClues);
+    }
+
+    /**
+     * Loads the whole puzzle.
+     */
+    public Puzzle toPuzzle() throws IOException {
+        return IO.loadNative(bb.duplicate());
+    }
+
+    private byte[] copy(int offset, int length) throws IOException {
+        if (offset + length > bb.limit()) {
+            throw new EOFException("Truncated .puz grid.");
+        }
+        byte[] result = new byte[length];
+        ByteBuffer region = bb.duplicate();
+        region.position(offset);
+        region.get(result);
+        return result;
+    }
+
+    /**
+     * Returns string n of the string section, null if it is empty, scanning
+     * forward from the last string already located.
+     */
+    private String getString(int n) throws IOException {
+        while (stringsLocated <= n) {
+            stringOffsets[stringsLocated] = terminator(stringOffsets[stringsLocated - 1]) + 1;
+            stringsLocated++;
+        }
+
+        int start = stringOffsets[n];
+        int end = terminator(start);
+        return (end == start) ? null : new String(copy(start, end - start), IO.CHARSET);
+    }
+
+    private int terminator(int offset) throws IOException {
+        int limit = bb.limit();
+        while (offset < limit && bb.get(offset) != 0) {
+            offset++;
+        }
+        if (offset >= limit) {
+            throw new EOFException("Unterminated string.");
+        }
+        return offset;
+    }
+}
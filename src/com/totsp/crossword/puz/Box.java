@@ -2,7 +2,17 @@ package com.totsp.crossword.puz;
 
 import java.io.Serializable;
 
+/**
+ * A single cell.  Boxes handed out by Puzzle are views onto a cell of its
+ * Grid.  A Box created on its own keeps its contents in its own fields until
+ * it is passed to Puzzle.setBoxes, which copies them into the puzzle's grid
+ * and makes the box a view from then on.
+ */
 public class Box implements Serializable {
+    // Null while the box is detached, when the fields below hold its contents.
+    private Grid grid;
+    private int index;
+
     private String responder;
     private boolean across;
     private boolean cheated;
@@ -12,6 +22,33 @@ public class Box implements Serializable {
     private char solution;
     private int clueNumber;
 
+    public Box() {
+    }
+
+    Box(Grid grid, int index) {
+        this.grid = grid;
+        this.index = index;
+    }
+
+    /**
+     * Copies this box's contents into a cell of another grid and makes the box
+     * a view onto that cell from then on.
+     */
+    void attach(Grid target, int targetIndex) {
+        target.setBlock(targetIndex, false);
+        target.setSolution(targetIndex, getSolution());
+        target.setResponse(targetIndex, getResponse());
+        target.setCircled(targetIndex, isCircled());
+        target.setAcross(targetIndex, isAcross());
+        target.setDown(targetIndex, isDown());
+        target.setCheated(targetIndex, isCheated());
+        target.setClueNumber(targetIndex, getClueNumber());
+        target.setResponder(targetIndex, getResponder());
+        this.grid = target;
+        this.index = targetIndex;
+        this.responder = null;
+    }
+
     @Override
     public boolean equals(Object obj) {
         if (this == obj) {
@@ -57,7 +94,7 @@ public class Box implements Serializable {
             if (other.getResponder() != null) {
                 return false;
             }
-        } else if (!responder.equals(other.responder)) {
+        } else if (!getResponder().equals(other.getResponder())) {
             return false;
         }
 
@@ -99,111 +136,143 @@ public class Box implements Serializable {
      * @param responder the responder to set
      */
     public void setResponder(String responder) {
-        this.responder = responder;
+        if (grid == null) {
+            this.responder = responder;
+        } else {
+            grid.setResponder(index, responder);
+        }
     }
 
     /**
      * @return the across
      */
     public boolean isAcross() {
-        return across;
+        return (grid == null) ? across : grid.isAcross(index);
     }
 
     /**
      * @param across the across to set
      */
     public void setAcross(boolean across) {
-        this.across = across;
+        if (grid == null) {
+            this.across = across;
+        } else {
+            grid.setAcross(index, across);
+        }
     }
 
     /**
      * @return the cheated
      */
     public boolean isCheated() {
-        return cheated;
+        return (grid == null) ? cheated : grid.isCheated(index);
     }
 
     /**
      * @param cheated the cheated to set
      */
     public void setCheated(boolean cheated) {
-        this.cheated = cheated;
+        if (grid == null) {
+            this.cheated = cheated;
+        } else {
+            grid.setCheated(index, cheated);
+        }
     }
 
     /**
      * @return the down
      */
     public boolean isDown() {
-        return down;
+        return (grid == null) ? down : grid.isDown(index);
     }
 
     /**
      * @param down the down to set
      */
     public void setDown(boolean down) {
-        this.down = down;
+        if (grid == null) {
+            this.down = down;
+        } else {
+            grid.setDown(index, down);
+        }
     }
     
     /**
      * @return if the box is circled
      */
     public boolean isCircled() {
-    	return circled;
+    	return (grid == null) ? circled : grid.isCircled(index);
     }
     
     /**
      * @param circled the circled to set
      */
     public void setCircled(boolean circled) {
-    	this.circled = circled;
+    	if (grid == null) {
+    	    this.circled = circled;
+    	} else {
+    	    grid.setCircled(index, circled);
+    	}
     }
 
     /**
      * @return the response
      */
     public char getResponse() {
-        return response;
+        return (grid == null) ? response : grid.getResponse(index);
     }
 
     /**
      * @param response the response to set
      */
     public void setResponse(char response) {
-        this.response = response;
+        if (grid == null) {
+            this.response = response;
+        } else {
+            grid.setResponse(index, response);
+        }
     }
 
     /**
      * @return the solution
      */
     public char getSolution() {
-        return solution;
+        return (grid == null) ? solution : grid.getSolution(index);
     }
 
     /**
      * @param solution the solution to set
      */
     public void setSolution(char solution) {
-        this.solution = solution;
+        if (grid == null) {
+            this.solution = solution;
+        } else {
+            grid.setSolution(index, solution);
+        }
     }
 
     /**
      * @return the clueNumber
      */
     public int getClueNumber() {
-        return clueNumber;
+        return (grid == null) ? clueNumber : grid.getClueNumber(index);
     }
 
     /**
      * @param clueNumber the clueNumber to set
      */
     public void setClueNumber(int clueNumber) {
-        this.clueNumber = clueNumber;
+        if (grid == null) {
+            this.clueNumber = clueNumber;
+        } else {
+            grid.setClueNumber(index, clueNumber);
+        }
     }
 
     /**
      * @return the responder
      */
     public String getResponder() {
-        return responder;
+        return (grid == null) ? responder : grid.getResponder(index);
     }
 }
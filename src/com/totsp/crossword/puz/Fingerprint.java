@@ -0,0 +1,62 @@
+package com.totsp.crossword.puz;
+
+/**
+ * 64 bit FNV-1a hashing of puzzle content, for Puzzle.getFingerprint.  Values
+ * are mixed in a byte or a char at a time; strings and arrays are preceded by
+ * their length, and null by -1, so neighbouring fields can't run together.
+ */
+final class Fingerprint {
+    static final long OFFSET_BASIS = 0xCBF29CE484222325L;
+    private static final long PRIME = 0x100000001B3L;
+
+    private Fingerprint() {
+    }
+
+    static long mix(long hash, long value) {
+        for (int shift = 0; shift < 64; shift += 8) {
+            hash = (hash ^ ((value >>> shift) & 0xFF)) * PRIME;
+        }
+        return hash;
+    }
+
+    static long mix(long hash, byte[] values) {
+        hash = mix(hash, values.length);
+        for (byte value : values) {
+            hash = (hash ^ (value & 0xFF)) * PRIME;
+        }
+        return hash;
+    }
+
+    static long mix(long hash, int[] values) {
+        if (values == null) {
+            return mix(hash, -1);
+        }
+        hash = mix(hash, values.length);
+        for (int value : values) {
+            hash = mix(hash, value);
+        }
+        return hash;
+    }
+
+    static long mix(long hash, String value) {
+        if (value == null) {
+            return mix(hash, -1);
+        }
+        hash = mix(hash, value.length());
+        for (int i = 0; i < value.length(); i++) {
+            hash = (hash ^ value.charAt(i)) * PRIME;
+        }
+        return hash;
+    }
+
+    static long mix(long hash, String[] values) {
+        if (values == null) {
+            return mix(hash, -1);
+        }
+        hash = mix(hash, values.length);
+        for (String value : values) {
+            hash = mix(hash, value);
+        }
+        return hash;
+    }
+}
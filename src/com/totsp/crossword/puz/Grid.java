@@ -0,0 +1,403 @@
+package com.totsp.crossword.puz;
+
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Packed storage for a puzzle's cells.  Cells are indexed row by row
+ * (row * width + column).  Solutions and responses are kept as one byte per
+ * cell in parallel arrays, the block, circled, across, down and cheated flags
+ * as bit planes in a single long[], and clue numbers in a short[].  Box
+ * objects handed out by Puzzle are views onto a Grid.
+ *
+ * Cell bytes are Cp1252, the .puz character set, and are decoded with a
+ * precomputed 256 entry table.  A new grid is all black squares; open a cell
+ * with setBlock(index, false).
+ *
+ * The grid keeps running counts of its open, filled and correctly filled
+ * cells, adjusted by every setter that can change them, so progress can be
+ * read without a scan.
+ */
+public class Grid implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private static final int BLOCK = 0;
+    private static final int CIRCLED = 1;
+    private static final int ACROSS = 2;
+    private static final int DOWN = 3;
+    private static final int CHEATED = 4;
+    private static final int PLANES = 5;
+
+    private static final char[] CP1252 = new char[256];
+
+    static {
+        Charset cp1252 = Charset.forName("Cp1252");
+        byte[] single = new byte[1];
+        for (int b = 0; b < CP1252.length; b++) {
+            single[0] = (byte) b;
+            char c = cp1252.decode(ByteBuffer.wrap(single)).charAt(0);
+            // Bytes Cp1252 leaves undefined map to themselves so they survive a round trip.
+            CP1252[b] = (c == '\uFFFD') ? (char) b : c;
+        }
+    }
+
+    private final int width;
+    private final int height;
+    private final byte[] solution;
+    private final byte[] response;
+    private final long[] bits;
+    private final int wordsPerPlane;
+    private final short[] clueNumbers;
+    private String[] responders;
+    private int openCount;
+    private int filledCount;
+    private int correctCount;
+    private int modCount;
+    // The toBoxes views, and the modCount they were made at.
+    private transient Box[][] views;
+    private transient int viewsModCount;
+
+    public Grid(int width, int height) {
+        this.width = width;
+        this.height = height;
+        int size = width * height;
+        solution = new byte[size];
+        response = new byte[size];
+        Arrays.fill(response, (byte) ' ');
+        wordsPerPlane = (size + 63) >>> 6;
+        bits = new long[PLANES * wordsPerPlane];
+        clueNumbers = new short[size];
+        for (int i = 0; i < size; i++) {
+            setBit(BLOCK, i, true);
+        }
+    }
+
+    private boolean getBit(int plane, int index) {
+        return (bits[plane * wordsPerPlane + (index >>> 6)] & (1L << index)) != 0;
+    }
+
+    private void setBit(int plane, int index, boolean value) {
+        int word = plane * wordsPerPlane + (index >>> 6);
+        if (value) {
+            bits[word] |= (1L << index);
+        } else {
+            bits[word] &= ~(1L << index);
+        }
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int size() {
+        return solution.length;
+    }
+
+    public boolean isBlock(int index) {
+        return getBit(BLOCK, index);
+    }
+
+    /**
+     * Marks a cell as a black square or opens it.  Either way the cell's
+     * contents are cleared.
+     */
+    public void setBlock(int index, boolean block) {
+        uncount(index);
+        modCount++;
+        setBit(BLOCK, index, block);
+        solution[index] = 0;
+        response[index] = ' ';
+        setBit(CIRCLED, index, false);
+        setBit(ACROSS, index, false);
+        setBit(DOWN, index, false);
+        setBit(CHEATED, index, false);
+        clueNumbers[index] = 0;
+        if (responders != null) {
+            responders[index] = null;
+        }
+        count(index);
+    }
+
+    private void uncount(int index) {
+        if (!isBlock(index)) {
+            openCount--;
+            if (response[index] != ' ') {
+                filledCount--;
+            }
+            if (response[index] == solution[index]) {
+                correctCount--;
+            }
+        }
+    }
+
+    private void count(int index) {
+        if (!isBlock(index)) {
+            openCount++;
+            if (response[index] != ' ') {
+                filledCount++;
+            }
+            if (response[index] == solution[index]) {
+                correctCount++;
+            }
+        }
+    }
+
+    /**
+     * Returns the number of cells that aren't black squares.
+     */
+    public int getOpenCount() {
+        return openCount;
+    }
+
+    /**
+     * Returns the number of open cells with a response in them.
+     */
+    public int getFilledCount() {
+        return filledCount;
+    }
+
+    /**
+     * Returns the number of open cells whose response matches the solution.
+     */
+    public int getCorrectCount() {
+        return correctCount;
+    }
+
+    /**
+     * Decodes a Cp1252 byte.
+     */
+    public static char decode(byte b) {
+        return CP1252[b & 0xFF];
+    }
+
+    /**
+     * Encodes a character as Cp1252.  The C1 controls whose bytes Cp1252
+     * gives to other characters, such as U+0080 for the euro sign, become
+     * '?'.  Other characters Cp1252 can't represent are truncated to their
+     * low byte, as .puz writers have always done.
+     */
+    public static byte encode(char c) {
+        if (c < 0x80 || (c < 0x100 && CP1252[c] == c)) {
+            return (byte) c;
+        }
+        for (int b = 0x80; b < 0xA0; b++) {
+            if (CP1252[b] == c) {
+                return (byte) b;
+            }
+        }
+        if (c < 0xA0) {
+            // Its own byte would read back as a different character.
+            return '?';
+        }
+        return (byte) c;
+    }
+
+    /**
+     * Fills the grid from the solution and response regions of a .puz file,
+     * which lie back to back at offset in data.  '.' marks a black square in
+     * the solution and '-' an empty cell in the responses.
+     */
+    public void readNative(byte[] data, int offset) {
+        int size = solution.length;
+        for (int i = 0; i < size; i++) {
+            byte value = data[offset + i];
+            boolean block = value == '.';
+            setBlock(i, block);
+            if (!block) {
+                uncount(i);
+                solution[i] = value;
+                byte answer = data[offset + size + i];
+                response[i] = (answer == '-' || answer == '.') ? (byte) ' ' : answer;
+                count(i);
+            }
+        }
+    }
+
+    public char getSolution(int index) {
+        return CP1252[solution[index] & 0xFF];
+    }
+
+    public void setSolution(int index, char value) {
+        uncount(index);
+        modCount++;
+        solution[index] = encode(value);
+        count(index);
+    }
+
+    /**
+     * Returns the solution exactly as it is stored in a .puz file.
+     */
+    public byte getSolutionByte(int index) {
+        return solution[index];
+    }
+
+    public char getResponse(int index) {
+        return CP1252[response[index] & 0xFF];
+    }
+
+    public void setResponse(int index, char value) {
+        uncount(index);
+        response[index] = encode(value);
+        count(index);
+    }
+
+    /**
+     * Returns the response as stored in memory, with ' ' for an empty cell.
+     */
+    public byte getResponseByte(int index) {
+        return response[index];
+    }
+
+    public boolean isCircled(int index) {
+        return getBit(CIRCLED, index);
+    }
+
+    public void setCircled(int index, boolean circled) {
+        setBit(CIRCLED, index, circled);
+    }
+
+    public boolean isAcross(int index) {
+        return getBit(ACROSS, index);
+    }
+
+    public void setAcross(int index, boolean across) {
+        setBit(ACROSS, index, across);
+    }
+
+    public boolean isDown(int index) {
+        return getBit(DOWN, index);
+    }
+
+    public void setDown(int index, boolean down) {
+        setBit(DOWN, index, down);
+    }
+
+    public boolean isCheated(int index) {
+        return getBit(CHEATED, index);
+    }
+
+    public void setCheated(int index, boolean cheated) {
+        setBit(CHEATED, index, cheated);
+    }
+
+    public int getClueNumber(int index) {
+        return clueNumbers[index] & 0xFFFF;
+    }
+
+    public void setClueNumber(int index, int clueNumber) {
+        clueNumbers[index] = (short) clueNumber;
+    }
+
+    public String getResponder(int index) {
+        return (responders == null) ? null : responders[index];
+    }
+
+    public void setResponder(int index, String responder) {
+        if (responders == null) {
+            if (responder == null) {
+                return;
+            }
+            responders = new String[solution.length];
+        }
+        responders[index] = responder;
+    }
+
+    /**
+     * Returns a number that changes whenever a cell is opened, blacked out or
+     * given a new solution, so callers can tell whether values they derived
+     * from the grid's shape and solution are still current.
+     */
+    public int getModCount() {
+        return modCount;
+    }
+
+    /**
+     * Mixes the grid's dimensions, black squares and solution into a
+     * fingerprint.  Responses and other per-cell state are left out.
+     */
+    long fingerprint(long hash) {
+        hash = Fingerprint.mix(hash, width);
+        hash = Fingerprint.mix(hash, height);
+        for (int word = 0; word < wordsPerPlane; word++) {
+            hash = Fingerprint.mix(hash, bits[(BLOCK * wordsPerPlane) + word]);
+        }
+        return Fingerprint.mix(hash, solution);
+    }
+
+    /**
+     * Returns Box views of the cells in the [row][column] layout Puzzle has
+     * always used, with null for black squares.  The same array is returned
+     * until a cell is opened, blacked out or given a new solution, so callers
+     * must not modify it.
+     */
+    public Box[][] toBoxes() {
+        if (views != null && viewsModCount == modCount) {
+            return views;
+        }
+        Box[][] boxes = new Box[height][width];
+        for (int x = 0; x < height; x++) {
+            for (int y = 0; y < width; y++) {
+                int index = x * width + y;
+                if (!isBlock(index)) {
+                    boxes[x][y] = new Box(this, index);
+                }
+            }
+        }
+        views = boxes;
+        viewsModCount = modCount;
+        return boxes;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+
+        if (obj == null || getClass() != obj.getClass()) {
+            return false;
+        }
+
+        Grid other = (Grid) obj;
+
+        return width == other.width && height == other.height
+            && Arrays.equals(bits, other.bits)
+            && Arrays.equals(solution, other.solution)
+            && Arrays.equals(response, other.response)
+            && Arrays.equals(clueNumbers, other.clueNumbers)
+            && respondersEqual(other);
+    }
+
+    private boolean respondersEqual(Grid other) {
+        if (responders == null && other.responders == null) {
+            return true;
+        }
+        for (int i = 0; i < solution.length; i++) {
+            String responder = getResponder(i);
+            String otherResponder = other.getResponder(i);
+            if (responder == null ? otherResponder != null : !responder.equals(otherResponder)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        final int prime = 31;
+        int result = 1;
+        result = (prime * result) + width;
+        result = (prime * result) + height;
+        result = (prime * result) + Arrays.hashCode(bits);
+        result = (prime * result) + Arrays.hashCode(solution);
+        result = (prime * result) + Arrays.hashCode(response);
+        result = (prime * result) + Arrays.hashCode(clueNumbers);
+        return result;
+    }
+}
@@ -3,8 +3,6 @@ package com.totsp.crossword.puz;
 import java.util.Arrays;
 import java.util.Date;
 
-import com.totsp.crossword.io.IO;
-
 
 public class Puzzle {
     private String author;
@@ -12,14 +10,17 @@ public class Puzzle {
     private String notes;
     private String title;
     private String[] acrossClues;
-    private Integer[] acrossCluesLookup;
+    private int[] acrossCluesLookup;
+    private String[] acrossCluesByNumber;
     private String[] downClues;
-    private Integer[] downCluesLookup;
+    private int[] downCluesLookup;
+    private String[] downCluesByNumber;
     private int numberOfClues;
     private Date pubdate = new Date();
     private String source;
     private String sourceUrl = "";
-    private Box[][] boxes;
+    private Grid grid;
+    private WordSpans wordSpans;
     private Box[] boxesList;
     private String[] rawClues;
     private boolean updatable;
@@ -32,79 +33,122 @@ public class Puzzle {
     private boolean hasGEXT;
     private boolean across = true;
     
-    // Temporary fields used for unscrambling.
-    private int[] unscrambleKey;
-    private byte[] unscrambleTmp;
-    private byte[] unscrambleBuf;
+    // Temporary buffers used for unscrambling.
+    private Unscrambler.Scratch unscrambleScratch;
+
+    // Cached content fingerprint, and the grid state it was taken from.
+    private long fingerprint;
+    private boolean fingerprinted;
+    private Grid fingerprintGrid;
+    private int fingerprintGridModCount;
 
     public void setAcrossClues(String[] acrossClues) {
         this.acrossClues = acrossClues;
+        fingerprinted = false;
+        this.acrossCluesByNumber = null;
     }
 
     public String[] getAcrossClues() {
         return acrossClues;
     }
 
-    public void setAcrossCluesLookup(Integer[] acrossCluesLookup) {
+    /**
+     * Sets the clue numbers of the across clues, in the same order as
+     * getAcrossClues().
+     */
+    public void setAcrossClueNumbers(int[] acrossCluesLookup) {
         this.acrossCluesLookup = acrossCluesLookup;
+        fingerprinted = false;
+        this.acrossCluesByNumber = null;
     }
 
-    public Integer[] getAcrossCluesLookup() {
+    public int[] getAcrossClueNumbers() {
         return acrossCluesLookup;
     }
 
+    /**
+     * Boxed form of setAcrossClueNumbers, kept for existing callers.
+     */
+    public void setAcrossCluesLookup(Integer[] acrossCluesLookup) {
+        setAcrossClueNumbers(unbox(acrossCluesLookup));
+    }
+
+    /**
+     * Boxed form of getAcrossClueNumbers, kept for existing callers.  A new
+     * array is made on every call.
+     */
+    public Integer[] getAcrossCluesLookup() {
+        return box(acrossCluesLookup);
+    }
+
     public void setAuthor(String author) {
         this.author = author;
+        fingerprinted = false;
     }
 
     public String getAuthor() {
         return author;
     }
 
+    /**
+     * Copies the boxes into a new packed grid and numbers it.  The boxes
+     * become views onto the puzzle's grid, so later changes made through them
+     * are seen by the puzzle.
+     */
     public void setBoxes(Box[][] boxes) {
-        this.boxes = boxes;
-
-        int clueCount = 1;
-
-        for (int x = 0; x < boxes.length; x++) {
-            boolean tickedClue = false;
+        int rows = boxes.length;
+        int columns = (rows == 0) ? 0 : boxes[0].length;
+        Grid grid = new Grid(columns, rows);
 
-            for (int y = 0; y < boxes[x].length; y++) {
-                if (boxes[x][y] == null) {
-                    continue;
+        for (int x = 0; x < rows; x++) {
+            for (int y = 0; y < columns; y++) {
+                if (boxes[x][y] != null) {
+                    boxes[x][y].attach(grid, (x * columns) + y);
                 }
+            }
+        }
 
-                if (((x == 0) || (boxes[x - 1][y] == null)) &&
-                        (((x + 1) < boxes.length) && (boxes[x + 1][y] != null))) {
-                    boxes[x][y].setDown(true);
-
-                    if ((x == 0) || (boxes[x - 1][y] == null)) {
-                        boxes[x][y].setClueNumber(clueCount);
-                        tickedClue = true;
-                    }
-                }
+        setGrid(grid);
+    }
 
-                if (((y == 0) || (boxes[x][y - 1] == null)) &&
-                        (((y + 1) < boxes[x].length) &&
-                        (boxes[x][y + 1] != null))) {
-                    boxes[x][y].setAcross(true);
+    /**
+     * Sets the packed grid and numbers it, building the word span tables in
+     * the same pass.
+     */
+    public void setGrid(Grid grid) {
+        this.grid = grid;
+        this.wordSpans = WordSpans.build(grid, true);
+    }
 
-                    if ((y == 0) || (boxes[x][y - 1] == null)) {
-                        boxes[x][y].setClueNumber(clueCount);
-                        tickedClue = true;
-                    }
-                }
+    /**
+     * Returns which cells make up each across and down word, and which word
+     * each cell is in.
+     */
+    public WordSpans getWordSpans() {
+        if (wordSpans == null) {
+            // Grids built from a boxes list keep the numbers they came with.
+            wordSpans = WordSpans.build(getGrid(), false);
+        }
+        return wordSpans;
+    }
 
-                if (tickedClue) {
-                    clueCount++;
-                    tickedClue = false;
-                }
-            }
+    /**
+     * Returns the packed grid backing this puzzle.
+     */
+    public Grid getGrid() {
+        if (grid == null) {
+            buildBoxes();
         }
+        return grid;
     }
 
+    /**
+     * Returns Box views onto the puzzle's grid, with null for black squares.
+     * The array is shared between calls while the grid's shape and solution
+     * are unchanged, so don't modify it; use getGrid() for bulk access.
+     */
     public Box[][] getBoxes() {
-        return (boxes == null) ? this.buildBoxes() : boxes;
+        return getGrid().toBoxes();
     }
 
     public void setBoxesList(Box[] value) {
@@ -113,6 +157,7 @@ public class Puzzle {
     }
 
     public Box[] getBoxesList() {
+        Box[][] boxes = getBoxes();
         Box[] result = new Box[boxes.length * boxes[0].length];
         int i = 0;
 
@@ -129,12 +174,9 @@ public class Puzzle {
      * Initialize the temporary unscramble buffers.  Returns the scrambled solution.
      */
     public byte[] initializeUnscrambleData() {
-    	unscrambleKey = new int[4];
-    	unscrambleTmp = new byte[9];
-    	
     	byte[] solution = getSolutionDown();
-    	unscrambleBuf = new byte[solution.length];
-    	
+    	unscrambleScratch = new Unscrambler.Scratch(solution.length);
+
     	return solution;
     }
 	
@@ -143,51 +185,25 @@ public class Puzzle {
      * array occur in place.  If true, the unscrambled solution checksum is valid.
      */
 	public boolean tryUnscramble(int key_int, byte[] solution) {
-		unscrambleKey[0] = (key_int / 1000) % 10;
-		unscrambleKey[1] = (key_int / 100) % 10;
-		unscrambleKey[2] = (key_int / 10) % 10;
-		unscrambleKey[3] = (key_int / 1) % 10;
-		
-		for (int i = 3; i >= 0; i--) {
-			unscrambleString(solution);
-			System.arraycopy(unscrambleBuf, 0, solution, 0, unscrambleBuf.length);
-			unshiftString(solution, unscrambleKey[i]);
-			for (int j = 0; j < solution.length; j++) {
-				int letter = (solution[j] & 0xFF) - unscrambleKey[j % 4];
-				if (letter < 65) {
-					letter += 26;
-				}
-				solution[j] = (byte) letter;
-			}
-		}
-
-		return solutionChecksum == (short) IO.cksum_region(solution, 0, solution.length, 0);
+		return unscrambleScratch.tryUnscramble(key_int, solution, solutionChecksum);
 	}
 
 	public void unshiftString(byte[] str, int keynum) {
-		System.arraycopy(str, str.length-keynum, unscrambleTmp, 0, keynum);
-		System.arraycopy(str, 0, str, keynum, str.length-keynum);
-		System.arraycopy(unscrambleTmp, 0, str, 0, keynum);
+		unscrambleScratch.unshiftString(str, keynum);
 	}
 	
 	public void unscrambleString(byte[] str) {
-		int oddIndex = 0;
-		int evenIndex = str.length / 2;
-		for (int i = 0; i < str.length; i++) {
-			if (i % 2 == 0) {
-				unscrambleBuf[evenIndex++] = str[i];
-			} else {
-				unscrambleBuf[oddIndex++] = str[i];
-			}
-		}
+		unscrambleScratch.unscrambleString(str);
 	}
 	
-	private byte[] getSolutionDown() {
+	byte[] getSolutionDown() {
+		Grid g = getGrid();
 		StringBuilder ans = new StringBuilder();
 		for (int x = 0; x < width; x++) {
 			for (int y = 0; y < height; y++) {
-				if (boxes[y][x] != null) {
-					ans.append(boxes[y][x].getSolution());
+				int i = (y * width) + x;
+				if (!g.isBlock(i)) {
+					ans.append(g.getSolution(i));
 				}
 			}
 		}
@@ -195,11 +211,13 @@ public class Puzzle {
 	}
 	
 	public void setUnscrambledSolution(byte[] solution) {
+		Grid g = getGrid();
 		int i = 0;
 		for (int x = 0; x < width; x++) {
 			for (int y = 0; y < height; y++) {
-				if (boxes[y][x] != null) {
-					boxes[y][x].setSolution((char) solution[i++]);
+				int cell = (y * width) + x;
+				if (!g.isBlock(cell)) {
+					g.setSolution(cell, (char) solution[i++]);
 				}
 			}
 		}
@@ -209,6 +227,7 @@ public class Puzzle {
 
     public void setCopyright(String copyright) {
         this.copyright = copyright;
+        fingerprinted = false;
     }
 
     public String getCopyright() {
@@ -225,25 +244,49 @@ public class Puzzle {
 
     public void setDownClues(String[] downClues) {
         this.downClues = downClues;
+        fingerprinted = false;
+        this.downCluesByNumber = null;
     }
 
     public String[] getDownClues() {
         return downClues;
     }
 
-    public void setDownCluesLookup(Integer[] downCluesLookup) {
+    /**
+     * Sets the clue numbers of the down clues, in the same order as
+     * getDownClues().
+     */
+    public void setDownClueNumbers(int[] downCluesLookup) {
         this.downCluesLookup = downCluesLookup;
+        fingerprinted = false;
+        this.downCluesByNumber = null;
     }
 
-    public Integer[] getDownCluesLookup() {
+    public int[] getDownClueNumbers() {
         return downCluesLookup;
     }
 
+    /**
+     * Boxed form of setDownClueNumbers, kept for existing callers.
+     */
+    public void setDownCluesLookup(Integer[] downCluesLookup) {
+        setDownClueNumbers(unbox(downCluesLookup));
+    }
+
+    /**
+     * Boxed form of getDownClueNumbers, kept for existing callers.  A new
+     * array is made on every call.
+     */
+    public Integer[] getDownCluesLookup() {
+        return box(downCluesLookup);
+    }
+
     /**
      * @param height the height to set
      */
     public void setHeight(int height) {
         this.height = height;
+        fingerprinted = false;
     }
 
     /**
@@ -255,6 +298,7 @@ public class Puzzle {
 
     public void setNotes(String notes) {
         this.notes = notes;
+        fingerprinted = false;
     }
 
     public String getNotes() {
@@ -263,48 +307,46 @@ public class Puzzle {
 
     public void setNumberOfClues(int numberOfClues) {
         this.numberOfClues = numberOfClues;
+        fingerprinted = false;
     }
 
     public int getNumberOfClues() {
         return numberOfClues;
     }
 
+    /**
+     * Returns the percentage of open cells filled in correctly, from the
+     * counts the grid keeps as responses change.
+     */
     public int getPercentComplete() {
-        int total = 0;
-        int correct = 0;
-
-        for (int x = 0; x < boxes.length; x++) {
-            for (int y = 0; y < boxes[x].length; y++) {
-                if (boxes[x][y] != null) {
-                    total++;
-
-                    if (boxes[x][y].getResponse() == boxes[x][y].getSolution()) {
-                        correct++;
-                    }
-                }
-            }
-        }
-
-        return (correct * 100) / (total);
+        Grid g = getGrid();
+        return (g.getCorrectCount() * 100) / g.getOpenCount();
     }
-    
-    public int getPercentFilled() {
-    	int total = 0;
-    	int filled = 0;
 
-        for (int x = 0; x < boxes.length; x++) {
-            for (int y = 0; y < boxes[x].length; y++) {
-                if (boxes[x][y] != null) {
-                    total++;
+    /**
+     * Returns the percentage of open cells with any response, from the counts
+     * the grid keeps as responses change.
+     */
+    public int getPercentFilled() {
+        Grid g = getGrid();
+        return (g.getFilledCount() * 100) / g.getOpenCount();
+    }
 
-                    if (boxes[x][y].getResponse() != ' ') {
-                        filled++;
-                    }
-                }
-            }
-        }
+    /**
+     * Returns the response in a cell, ' ' if it is empty.
+     */
+    public char getResponse(int row, int column) {
+        Grid g = getGrid();
+        return g.getResponse((row * g.getWidth()) + column);
+    }
 
-        return (filled * 100) / (total);
+    /**
+     * Sets the response in a cell, ' ' to clear it.  The filled and correct
+     * counts behind the percentages are updated as it is set.
+     */
+    public void setResponse(int row, int column, char response) {
+        Grid g = getGrid();
+        g.setResponse((row * g.getWidth()) + column, response);
     }
 
     public void setRawClues(String[] rawClues) {
@@ -341,6 +383,7 @@ public class Puzzle {
 
     public void setTitle(String title) {
         this.title = title;
+        fingerprinted = false;
     }
 
     public String getTitle() {
@@ -357,6 +400,7 @@ public class Puzzle {
     
     public void setVersion(String version) {
     	this.version = version;
+    	fingerprinted = false;
     }
 
      public String getVersion() {
@@ -381,6 +425,7 @@ public class Puzzle {
     
     public void setScrambled(boolean scrambled) {
     	this.scrambled = scrambled;
+    	fingerprinted = false;
     }
     
     public boolean isScrambled() {
@@ -389,6 +434,7 @@ public class Puzzle {
     
     public void setSolutionChecksum(short checksum) {
     	this.solutionChecksum = checksum;
+    	fingerprinted = false;
     }
     
     public short getSolutionChecksum() {
@@ -400,6 +446,7 @@ public class Puzzle {
      */
     public void setWidth(int width) {
         this.width = width;
+        fingerprinted = false;
     }
 
     /**
@@ -413,11 +460,17 @@ public class Puzzle {
         System.out.println("Building boxes " + this.height + "x" + this.width);
 
         int i = 0;
-        boxes = new Box[this.height][this.width];
+        Box[][] boxes = new Box[this.height][this.width];
+        grid = new Grid(this.width, this.height);
+        wordSpans = null;
 
         for (int y = 0; y < this.height; y++) {
             for (int x = 0; x < this.width; x++) {
-                boxes[y][x] = boxesList[i++];
+                boxes[y][x] = boxesList[i];
+                if (boxes[y][x] != null) {
+                    boxes[y][x].attach(grid, i);
+                }
+                i++;
             }
         }
 
@@ -440,6 +493,10 @@ public class Puzzle {
 
         Puzzle other = (Puzzle) obj;
 
+        if (getFingerprint() != other.getFingerprint()) {
+            return false;
+        }
+
         if (!Arrays.equals(acrossClues, other.acrossClues)) {
             System.out.println("acrossClues");
 
@@ -464,19 +521,7 @@ public class Puzzle {
             return false;
         }
 
-        Box[][] b1 = boxes;
-        Box[][] b2 = other.boxes;
-        boolean boxEq = true;
-
-        for (int x = 0; x < b1.length; x++) {
-            for (int y = 0; y < b1[x].length; y++) {
-                boxEq = boxEq
-                    ? ((b1[x][y] == b2[x][y]) || b1[x][y].equals(b2[x][y]))
-                    : boxEq;
-            }
-        }
-
-        if (!boxEq) {
+        if ((grid == null) ? (other.grid != null) : !grid.equals(other.grid)) {
             System.out.println("boxes");
 
             return false;
@@ -559,41 +604,118 @@ public class Puzzle {
         return true;
     }
 
+    /**
+     * Returns the across clue with the given number, or null if there isn't
+     * one.
+     */
     public String findAcrossClue(int clueNumber) {
-        return this.acrossClues[Arrays.binarySearch(this.acrossCluesLookup,
-            clueNumber)];
+        if (acrossCluesByNumber == null) {
+            acrossCluesByNumber = byNumber(acrossClues, acrossCluesLookup);
+        }
+        return ((clueNumber >= 0) && (clueNumber < acrossCluesByNumber.length))
+            ? acrossCluesByNumber[clueNumber] : null;
     }
 
+    /**
+     * Returns the down clue with the given number, or null if there isn't
+     * one.
+     */
     public String findDownClue(int clueNumber) {
-        return this.downClues[Arrays.binarySearch(this.downCluesLookup,
-            clueNumber)];
+        if (downCluesByNumber == null) {
+            downCluesByNumber = byNumber(downClues, downCluesLookup);
+        }
+        return ((clueNumber >= 0) && (clueNumber < downCluesByNumber.length))
+            ? downCluesByNumber[clueNumber] : null;
     }
 
-    @Override
-    public int hashCode() {
-        final int prime = 31;
-        int result = 1;
-        result = (prime * result) + Arrays.hashCode(acrossClues);
-        result = (prime * result) + Arrays.hashCode(acrossCluesLookup);
-        result = (prime * result) + ((author == null) ? 0 : author.hashCode());
-        result = (prime * result) + Arrays.hashCode(boxes);
-        result = (prime * result) +
-            ((copyright == null) ? 0 : copyright.hashCode());
-        result = (prime * result) + Arrays.hashCode(downClues);
-        result = (prime * result) + Arrays.hashCode(downCluesLookup);
-        result = (prime * result) + height;
-        result = (prime * result) + ((notes == null) ? 0 : notes.hashCode());
-        result = (prime * result) + getNumberOfClues();
-        result = (prime * result) + ((title == null) ? 0 : title.hashCode());
-        result = (prime * result) + ((version == null) ? 0 : version.hashCode());
-        result = (prime * result) + width;
+    /**
+     * Lays clues out in an array indexed by clue number.  Clue numbers only
+     * run as high as the number of words in the grid, so the array is small.
+     */
+    private static String[] byNumber(String[] clues, int[] numbers) {
+        if ((clues == null) || (numbers == null)) {
+            return new String[0];
+        }
+        int max = 0;
+        for (int number : numbers) {
+            max = Math.max(max, number);
+        }
+        String[] result = new String[max + 1];
+        for (int i = 0; i < Math.min(clues.length, numbers.length); i++) {
+            result[numbers[i]] = clues[i];
+        }
+        return result;
+    }
 
+    private static int[] unbox(Integer[] values) {
+        if (values == null) {
+            return null;
+        }
+        int[] result = new int[values.length];
+        for (int i = 0; i < values.length; i++) {
+            result[i] = values[i];
+        }
+        return result;
+    }
+
+    private static Integer[] box(int[] values) {
+        if (values == null) {
+            return null;
+        }
+        Integer[] result = new Integer[values.length];
+        for (int i = 0; i < values.length; i++) {
+            result[i] = values[i];
+        }
         return result;
     }
 
+    /**
+     * Returns a 64 bit fingerprint of the puzzle's content: the grid's shape
+     * and solution, the clues and their numbers, and the title, author,
+     * copyright, notes and other header fields that equals compares.
+     * Responses are not included, so a puzzle keeps its fingerprint while it
+     * is being solved.  Equal puzzles always have equal fingerprints.
+     *
+     * The fingerprint is computed once and kept until a setter or a change to
+     * the grid's shape or solution invalidates it.  Changes made directly to
+     * arrays passed to or returned by the clue accessors are not noticed.
+     */
+    public long getFingerprint() {
+        if (!fingerprinted || (fingerprintGrid != grid)
+                || ((grid != null) && (fingerprintGridModCount != grid.getModCount()))) {
+            long hash = Fingerprint.OFFSET_BASIS;
+            hash = (grid == null) ? Fingerprint.mix(hash, -1) : grid.fingerprint(hash);
+            hash = Fingerprint.mix(hash, width);
+            hash = Fingerprint.mix(hash, height);
+            hash = Fingerprint.mix(hash, acrossClues);
+            hash = Fingerprint.mix(hash, acrossCluesLookup);
+            hash = Fingerprint.mix(hash, downClues);
+            hash = Fingerprint.mix(hash, downCluesLookup);
+            hash = Fingerprint.mix(hash, numberOfClues);
+            hash = Fingerprint.mix(hash, title);
+            hash = Fingerprint.mix(hash, author);
+            hash = Fingerprint.mix(hash, copyright);
+            hash = Fingerprint.mix(hash, notes);
+            hash = Fingerprint.mix(hash, version);
+            hash = Fingerprint.mix(hash, scrambled ? 1 : 0);
+            hash = Fingerprint.mix(hash, solutionChecksum);
+            fingerprint = hash;
+            fingerprintGrid = grid;
+            fingerprintGridModCount = (grid == null) ? 0 : grid.getModCount();
+            fingerprinted = true;
+        }
+        return fingerprint;
+    }
+
+    @Override
+    public int hashCode() {
+        long hash = getFingerprint();
+        return (int) (hash ^ (hash >>> 32));
+    }
+
     @Override
     public String toString() {
-        return "Puzzle " + boxes.length + " x " + boxes[0].length + " " +
+        return "Puzzle " + getGrid().getHeight() + " x " + getGrid().getWidth() + " " +
         this.title;
     }
 }
\ No newline at end of file
@@ -0,0 +1,164 @@
+package com.totsp.crossword.puz;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.totsp.crossword.io.IO;
+
+/**
+ * Brute-force unscrambler for locked puzzles.  The 0000-9999 key space is
+ * split across a fork-join pool; every worker has its own scratch buffers, so
+ * the puzzle itself is only read until a key is found.  Ranges above the
+ * lowest matching key found so far are abandoned, so the search stops early
+ * and always settles on the same key a sequential search would.
+ *
+ * By default the search runs on the common pool, so creating unscramblers
+ * doesn't start threads of its own.
+ */
+public class Unscrambler {
+    public static final int KEY_SPACE = 10000;
+
+    // Keys per leaf task; small enough to balance, large enough to amortize forking.
+    private static final int LEAF_SIZE = 100;
+
+    private final ForkJoinPool pool;
+
+    public Unscrambler() {
+        this(ForkJoinPool.commonPool());
+    }
+
+    public Unscrambler(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Returns the lowest key whose unscrambled solution matches the puzzle's
+     * solution checksum, or -1 if there is none.  The puzzle is not changed.
+     */
+    public int findKey(Puzzle puz) {
+        byte[] scrambled = puz.getSolutionDown();
+        AtomicInteger found = new AtomicInteger(KEY_SPACE);
+        pool.invoke(new Search(scrambled, puz.getSolutionChecksum(), 0, KEY_SPACE, found));
+        int key = found.get();
+        return (key == KEY_SPACE) ? -1 : key;
+    }
+
+    /**
+     * Finds the key for a scrambled puzzle and, if there is one, applies the
+     * unscrambled solution with Puzzle.setUnscrambledSolution.  Returns the
+     * key, or -1 if no key matches.
+     */
+    public int unscramble(Puzzle puz) {
+        int key = findKey(puz);
+        if (key >= 0) {
+            byte[] solution = puz.getSolutionDown();
+            new Scratch(solution.length).tryUnscramble(key, solution, puz.getSolutionChecksum());
+            puz.setUnscrambledSolution(solution);
+        }
+        return key;
+    }
+
+    private static class Search extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final byte[] scrambled;
+        private final short checksum;
+        private final int from;
+        private final int to;
+        private final AtomicInteger found;
+
+        Search(byte[] scrambled, short checksum, int from, int to, AtomicInteger found) {
+            this.scrambled = scrambled;
+            this.checksum = checksum;
+            this.from = from;
+            this.to = to;
+            this.found = found;
+        }
+
+        @Override
+        protected void compute() {
+            if (from >= found.get()) {
+                return;
+            }
+            if (to - from > LEAF_SIZE) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new Search(scrambled, checksum, from, mid, found),
+                    new Search(scrambled, checksum, mid, to, found));
+                return;
+            }
+
+            Scratch scratch = new Scratch(scrambled.length);
+            byte[] solution = new byte[scrambled.length];
+            for (int key = from; key < to && key < found.get(); key++) {
+                System.arraycopy(scrambled, 0, solution, 0, solution.length);
+                if (scratch.tryUnscramble(key, solution, checksum)) {
+                    int current;
+                    while (key < (current = found.get()) && !found.compareAndSet(current, key)) {
+                        // Retry until this key is recorded or a lower one wins.
+                    }
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Working buffers for unscrambling a solution of a given length.  Not
+     * thread safe; each thread needs its own.
+     */
+    static class Scratch {
+        private final int[] key = new int[4];
+        private final byte[] tmp = new byte[9];
+        private final byte[] buf;
+
+        Scratch(int length) {
+            buf = new byte[length];
+        }
+
+        /**
+         * Attempts to unscramble the solution using the input key.  Modifications
+         * to the solution array occur in place.  If true, the unscrambled solution
+         * checksum is valid.
+         */
+        boolean tryUnscramble(int key_int, byte[] solution, short solutionChecksum) {
+            key[0] = (key_int / 1000) % 10;
+            key[1] = (key_int / 100) % 10;
+            key[2] = (key_int / 10) % 10;
+            key[3] = (key_int / 1) % 10;
+
+            for (int i = 3; i >= 0; i--) {
+                unscrambleString(solution);
+                System.arraycopy(buf, 0, solution, 0, buf.length);
+                unshiftString(solution, key[i]);
+                for (int j = 0; j < solution.length; j++) {
+                    int letter = (solution[j] & 0xFF) - key[j % 4];
+                    if (letter < 65) {
+                        letter += 26;
+                    }
+                    solution[j] = (byte) letter;
+                }
+            }
+
+            return solutionChecksum == (short) IO.cksum_region(solution, 0, solution.length, 0);
+        }
+
+        void unshiftString(byte[] str, int keynum) {
+            System.arraycopy(str, str.length - keynum, tmp, 0, keynum);
+            System.arraycopy(str, 0, str, keynum, str.length - keynum);
+            System.arraycopy(tmp, 0, str, 0, keynum);
+        }
+
+        void unscrambleString(byte[] str) {
+            int oddIndex = 0;
+            int evenIndex = str.length / 2;
+            for (int i = 0; i < str.length; i++) {
+                if (i % 2 == 0) {
+                    buf[evenIndex++] = str[i];
+                } else {
+                    buf[oddIndex++] = str[i];
+                }
+            }
+        }
+    }
+}
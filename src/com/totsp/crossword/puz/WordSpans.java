@@ -0,0 +1,174 @@
+package com.totsp.crossword.puz;
+
+import java.util.Arrays;
+
+/**
+ * The across and down words of a numbered grid, as flat int tables.  Words
+ * are indexed separately for each direction, in the order their clue numbers
+ * run.  Every cell maps to the index of the across and down word it belongs
+ * to, or -1 for a black square or a cell with no word in that direction.
+ * Each word maps to the cell it starts in, its length and its clue number.
+ * Every lookup is a single array read.
+ *
+ * The tables are built in the same pass over the grid that numbers it, and
+ * describe the grid as it was then; Puzzle builds new ones whenever a grid is
+ * set.
+ */
+public class WordSpans {
+    private final int[] acrossWord;
+    private final int[] downWord;
+    private final int[] acrossStart;
+    private final int[] acrossLength;
+    private final int[] acrossNumber;
+    private final int[] downStart;
+    private final int[] downLength;
+    private final int[] downNumber;
+
+    private WordSpans(int[] acrossWord, int[] downWord, int[] acrossStart, int[] acrossLength,
+            int[] acrossNumber, int[] downStart, int[] downLength, int[] downNumber) {
+        this.acrossWord = acrossWord;
+        this.downWord = downWord;
+        this.acrossStart = acrossStart;
+        this.acrossLength = acrossLength;
+        this.acrossNumber = acrossNumber;
+        this.downStart = downStart;
+        this.downLength = downLength;
+        this.downNumber = downNumber;
+    }
+
+    /**
+     * Finds the words of a grid.  A word is a run of two or more open cells.
+     * If assignNumbers is set, the grid is numbered along the way: each cell
+     * that starts a word gets the next clue number and its across and down
+     * flags.  Otherwise the clue numbers already in the grid are used.
+     */
+    static WordSpans build(Grid grid, boolean assignNumbers) {
+        int rows = grid.getHeight();
+        int columns = grid.getWidth();
+        int[] acrossWord = new int[rows * columns];
+        int[] downWord = new int[rows * columns];
+        // A run of two cells and the black square after it is the shortest a word can take up.
+        int[] acrossStart = new int[rows * ((columns + 1) / 3)];
+        int[] acrossLength = new int[acrossStart.length];
+        int[] acrossNumber = new int[acrossStart.length];
+        int[] downStart = new int[columns * ((rows + 1) / 3)];
+        int[] downLength = new int[downStart.length];
+        int[] downNumber = new int[downStart.length];
+        int across = 0;
+        int down = 0;
+        int clueCount = 1;
+
+        for (int x = 0; x < rows; x++) {
+            for (int y = 0; y < columns; y++) {
+                int i = (x * columns) + y;
+
+                if (grid.isBlock(i)) {
+                    acrossWord[i] = -1;
+                    downWord[i] = -1;
+                    continue;
+                }
+
+                boolean startsDown = ((x == 0) || grid.isBlock(i - columns)) &&
+                        (((x + 1) < rows) && !grid.isBlock(i + columns));
+                boolean startsAcross = ((y == 0) || grid.isBlock(i - 1)) &&
+                        (((y + 1) < columns) && !grid.isBlock(i + 1));
+
+                int number = 0;
+                if (startsDown || startsAcross) {
+                    if (assignNumbers) {
+                        number = clueCount++;
+                        grid.setClueNumber(i, number);
+                        if (startsDown) {
+                            grid.setDown(i, true);
+                        }
+                        if (startsAcross) {
+                            grid.setAcross(i, true);
+                        }
+                    } else {
+                        number = grid.getClueNumber(i);
+                    }
+                }
+
+                // An open cell with an open neighbour before it is in that neighbour's word.
+                if (startsAcross) {
+                    acrossStart[across] = i;
+                    acrossNumber[across] = number;
+                    acrossWord[i] = across++;
+                } else {
+                    acrossWord[i] = ((y > 0) && !grid.isBlock(i - 1)) ? acrossWord[i - 1] : -1;
+                }
+                if (acrossWord[i] >= 0) {
+                    acrossLength[acrossWord[i]]++;
+                }
+
+                if (startsDown) {
+                    downStart[down] = i;
+                    downNumber[down] = number;
+                    downWord[i] = down++;
+                } else {
+                    downWord[i] = ((x > 0) && !grid.isBlock(i - columns)) ? downWord[i - columns] : -1;
+                }
+                if (downWord[i] >= 0) {
+                    downLength[downWord[i]]++;
+                }
+            }
+        }
+
+        return new WordSpans(acrossWord, downWord,
+            Arrays.copyOf(acrossStart, across), Arrays.copyOf(acrossLength, across),
+            Arrays.copyOf(acrossNumber, across), Arrays.copyOf(downStart, down),
+            Arrays.copyOf(downLength, down), Arrays.copyOf(downNumber, down));
+    }
+
+    public int getAcrossWordCount() {
+        return acrossStart.length;
+    }
+
+    public int getDownWordCount() {
+        return downStart.length;
+    }
+
+    /**
+     * Returns the across word the cell at index is in, or -1 if none.
+     */
+    public int getAcrossWord(int index) {
+        return acrossWord[index];
+    }
+
+    /**
+     * Returns the down word the cell at index is in, or -1 if none.
+     */
+    public int getDownWord(int index) {
+        return downWord[index];
+    }
+
+    /**
+     * Returns the index of the first cell of an across word.
+     */
+    public int getAcrossStart(int word) {
+        return acrossStart[word];
+    }
+
+    public int getAcrossLength(int word) {
+        return acrossLength[word];
+    }
+
+    public int getAcrossNumber(int word) {
+        return acrossNumber[word];
+    }
+
+    /**
+     * Returns the index of the first cell of a down word.
+     */
+    public int getDownStart(int word) {
+        return downStart[word];
+    }
+
+    public int getDownLength(int word) {
+        return downLength[word];
+    }
+
+    public int getDownNumber(int word) {
+        return downNumber[word];
+    }
+}